@@ -0,0 +1,34 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.auto.value.AutoValue;
+
+// The JSON of a chart together with when and from which content version it was computed
+@AutoValue
+abstract class CachedChart {
+
+  static CachedChart create(String json, long computedAt, long version) {
+    return new AutoValue_CachedChart(json, computedAt, version);
+  }
+
+  abstract String json();
+
+  // The time in milliseconds at which the chart was computed
+  abstract long computedAt();
+
+  // The ContentVersion current when the computation started
+  abstract long version();
+}
@@ -0,0 +1,34 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.auto.value.AutoValue;
+import com.google.cloud.datastore.Entity;
+import java.util.List;
+
+// A comment thread together with the content version it was read at
+@AutoValue
+abstract class CachedThread {
+
+  static CachedThread create(List<Entity> thread, long version) {
+    return new AutoValue_CachedThread(thread, version);
+  }
+
+  // The root comment followed by its replies
+  abstract List<Entity> thread();
+
+  // The ContentVersion current when the thread was read from datastore
+  abstract long version();
+}
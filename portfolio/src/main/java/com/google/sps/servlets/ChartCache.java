@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletRequest;
+
+/*
+ * Caches the JSON computed by the chart servlets so that a burst of identical
+ * requests costs one computation. A chart is fresh for chartcachettlms milliseconds
+ * after it was computed, as long as ContentVersion has not moved on since. Concurrent
+ * requests for a chart that is missing share a single computation. A chart that is
+ * no longer fresh but at most one more TTL old is still served while one background
+ * computation replaces it.
+ */
+public class ChartCache {
+
+  private static final long ttlMs = Long.getLong("chartcachettlms", 30000);
+
+  // How long after it stops being fresh a chart may be served while it is recomputed
+  private static final long maxStaleMs = ttlMs;
+
+  // Bounds the number of distinct chart queries kept, since query strings vary
+  private static final int maxCachedCharts = 100;
+
+  private static final Cache<String, CachedChart> charts =
+      CacheBuilder.newBuilder().maximumSize(maxCachedCharts).build();
+
+  // Maps each chart being computed to the computation's eventual result
+  private static final ConcurrentHashMap<String, CompletableFuture<CachedChart>> inFlight =
+      new ConcurrentHashMap<>();
+
+  private static final ExecutorService refresher = Executors.newSingleThreadExecutor();
+
+  private static final Logger logger = Logger.getLogger(ChartCache.class.getName());
+
+  /*
+   * Returns the chart requested by request, computing its JSON with compute only if
+   * there is no usable cached copy and no other request is already computing it. The
+   * computation must not use App Engine APIs, since it may run in the background.
+   */
+  public static CachedChart get(HttpServletRequest request, Supplier<String> compute) {
+    String queryString = (request.getQueryString() == null) ? "" : request.getQueryString();
+    String key = request.getServletPath() + "?" + queryString;
+    long version = ContentVersion.get();
+    long now = System.currentTimeMillis();
+
+    CachedChart cached = charts.getIfPresent(key);
+    if (cached != null) {
+      long age = now - cached.computedAt();
+      if (age < ttlMs && cached.version() == version) {
+        return cached;
+      }
+      if (age < ttlMs + maxStaleMs) {
+        computeOnce(key, compute, version, refresher);
+        return cached;
+      }
+    }
+
+    try {
+      return computeOnce(key, compute, version, Runnable::run).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /*
+   * Starts computing the chart with the given key on executor, unless it is already
+   * being computed, and returns the computation's result
+   */
+  private static CompletableFuture<CachedChart> computeOnce(
+      String key, Supplier<String> compute, long version, Executor executor) {
+    CompletableFuture<CachedChart> result = new CompletableFuture<>();
+    CompletableFuture<CachedChart> existing = inFlight.putIfAbsent(key, result);
+    if (existing != null) {
+      return existing;
+    }
+    executor.execute(
+        () -> {
+          try {
+            CachedChart chart =
+                CachedChart.create(compute.get(), System.currentTimeMillis(), version);
+            charts.put(key, chart);
+            result.complete(chart);
+          } catch (RuntimeException e) {
+            // A background refresh has no caller to report to, so the stale chart stays
+            logger.log(Level.WARNING, "Could not compute chart " + key, e);
+            result.completeExceptionally(e);
+          } finally {
+            inFlight.remove(key, result);
+          }
+        });
+    return result;
+  }
+}
@@ -0,0 +1,43 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.translate.Translate;
+import com.google.cloud.translate.TranslateOptions;
+import com.google.cloud.translate.Translation;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.List;
+
+// Translates comment text using the Google Cloud Translation API
+public class CloudCommentTranslator implements CommentTranslator {
+
+  // The largest number of texts the Translation API accepts in a single request
+  private static final int maxTextsPerRequest = 128;
+
+  @Override
+  public List<String> translate(List<String> texts, String langCode) {
+    Translate translate = TranslateOptions.getDefaultInstance().getService();
+    ArrayList<String> translatedTexts = new ArrayList<>();
+    for (List<String> batch : Lists.partition(texts, maxTextsPerRequest)) {
+      List<Translation> translations =
+          translate.translate(batch, Translate.TranslateOption.targetLanguage(langCode));
+      for (Translation translation : translations) {
+        translatedTexts.add(translation.getTranslatedText());
+      }
+    }
+    return translatedTexts;
+  }
+}
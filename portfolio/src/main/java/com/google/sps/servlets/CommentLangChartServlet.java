@@ -16,17 +16,13 @@ package com.google.sps.servlets;
 
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
-import com.google.cloud.datastore.Datastore;
-import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.Query;
-import com.google.cloud.datastore.QueryResults;
 import com.google.common.io.CharStreams;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -38,7 +34,7 @@ public class CommentLangChartServlet extends HttpServlet {
   /*
    * Called when client submits a POST request to the /commentlang-chart URL
    * The request language is retrieved and the number of times it has been
-   * accessed is either updated or initialized in datastore.
+   * accessed is increased by one, written to datastore by a later flush.
    */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -51,36 +47,37 @@ public class CommentLangChartServlet extends HttpServlet {
     JsonObject jsonLang = UtilityFunctions.stringToJsonObject(parsedBody);
 
     String commentLang = UtilityFunctions.getFieldFromJsonObject(jsonLang, "lang", "en");
-    UtilityFunctions.updateLangInDatastoreIfPresent(commentLang);
+    LangCounter.record(commentLang);
+    LangCounter.flushIfDue();
   }
 
   /*
    * Collects data about the number of times comments have been requested in various languages
-   * and sends it to the client
+   * and sends it to the client. The counts change with every request for comments without
+   * moving ContentVersion, so this chart is computed afresh rather than cached or tagged.
    */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    LangCounter.flushIfDue();
+    response.setContentType("application/json;");
+    response.getWriter().println(getAccessesByLang());
+  }
+
+  // Returns the number of requests in each language, keyed by language name, as JSON
+  private String getAccessesByLang() {
     /*
      * This data structure maps a language name to the number of times users have requested
      * comments in this language
      */
     HashMap<String, Long> numAccessesByLang = new HashMap<>();
 
-    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    Query<Entity> query = Query.newEntityQueryBuilder().setKind("CommentLang").build();
-    QueryResults<Entity> results = datastore.run(query);
-
-    while (results.hasNext()) {
-      Entity lang = results.next();
-      String langCode = lang.getString("lang");
-      long numAccessInLang = lang.getLong("comments");
-      Locale loc = new Locale(langCode);
+    for (Map.Entry<String, Long> lang : LangCounter.getCounts().entrySet()) {
+      Locale loc = new Locale(lang.getKey());
       String langName = loc.getDisplayLanguage();
-      numAccessesByLang.put(langName, numAccessInLang);
+      numAccessesByLang.merge(langName, lang.getValue(), Long::sum);
     }
 
     Gson gson = new Gson();
-    response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(numAccessesByLang));
+    return gson.toJson(numAccessesByLang);
   }
 }
@@ -0,0 +1,500 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.ProjectionEntityQuery;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.Filter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Keeps CommentRollup entities counting the root comments and replies submitted in
+ * every UTC hour, day, week and month that has comments, so the comments-over-time
+ * chart reads one row per bucket instead of every DateEntry. The counts are adjusted
+ * transactionally whenever comments are written, have their timestamp edited or are
+ * deleted. Each entity is keyed by its bucket length and start time in milliseconds.
+ *
+ * A chart in another time zone is built from the hourly rows, since UTC days, weeks
+ * and months do not line up with those of other zones. Zones whose offset from UTC
+ * is not a whole number of hours are counted from the DateEntry entities directly.
+ */
+public class CommentRollups {
+
+  // The number of times an update is attempted when its transaction conflicts
+  private static final int maxAttempts = 5;
+
+  // The largest number of entity groups datastore accepts in a single transaction
+  private static final int maxRowsPerTransaction = 25;
+
+  // The largest number of entities datastore accepts in a single write
+  private static final int maxEntitiesPerWrite = 500;
+
+  // The buckets comments are stored in, from the coarsest to the finest
+  private static final RollupBucket[] storedBuckets = {
+    RollupBucket.MONTH, RollupBucket.WEEK, RollupBucket.DAY, RollupBucket.HOUR
+  };
+
+  // Runs rebuilds in the background, so they are not bound by the request deadline
+  private static final ExecutorService rebuilder = Executors.newSingleThreadExecutor();
+
+  private static final AtomicBoolean isRebuilding = new AtomicBoolean();
+
+  // The number of rows written by the last rebuild that finished, or -1 if none has
+  private static final AtomicLong lastRebuildRows = new AtomicLong(-1);
+
+  private static final Logger logger = Logger.getLogger(CommentRollups.class.getName());
+
+  /*
+   * Adds sign (1 or -1) to the counts of every bucket containing each of timestamps,
+   * which are DateEntry entities, for comments that were written or deleted
+   */
+  public static void addTimestamps(Iterable<Entity> timestamps, int sign) {
+    Map<String, DayComments> deltas = new HashMap<>();
+    for (Entity timestamp : timestamps) {
+      addToDeltas(deltas, timestamp.getLong("time"), timestamp.getLong("rootid"), sign);
+    }
+    addToRowsOrLog(deltas);
+  }
+
+  // Moves a comment with root id rootId from the buckets of oldTime to those of newTime
+  public static void moveComment(long rootId, long oldTime, long newTime) {
+    Map<String, DayComments> deltas = new HashMap<>();
+    addToDeltas(deltas, oldTime, rootId, -1);
+    addToDeltas(deltas, newTime, rootId, 1);
+    addToRowsOrLog(deltas);
+  }
+
+  /*
+   * Adds each of deltas to the counts of the row it is keyed by. The comments they
+   * count are already saved, so a failure, such as the coarse rows staying contended
+   * through every attempt, is logged with the deltas instead of failing the request.
+   * The counts are corrected by the next rebuild.
+   */
+  private static void addToRowsOrLog(Map<String, DayComments> deltas) {
+    try {
+      addToRows(deltas);
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Could not update comment rollups by " + deltas, e);
+    }
+  }
+
+  /*
+   * Returns the counts of every bucket of the given length in zone that has comments
+   * between rangeStart (inclusive) and rangeEnd (exclusive), in order and keyed by the
+   * bucket's label. Either bound may be null, leaving that end of the range open. The
+   * counts are read from the coarsest stored rollup whose buckets fit exactly.
+   */
+  public static Map<String, DayComments> getRange(
+      ZonedDateTime rangeStart, ZonedDateTime rangeEnd, RollupBucket bucket, ZoneId zone) {
+    BucketTally tally = new BucketTally(bucket, zone);
+    RollupBucket stored = getStoredBucket(rangeStart, rangeEnd, bucket, zone);
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+
+    if (stored == null) {
+      ProjectionEntityQuery.Builder queryBuilder =
+          Query.newProjectionEntityQueryBuilder()
+              .setKind("DateEntry")
+              .setProjection("time", "rootid")
+              .setOrderBy(OrderBy.asc("time"));
+      Filter timeFilter = getTimeFilter("time", rangeStart, rangeEnd, null);
+      if (timeFilter != null) {
+        queryBuilder.setFilter(timeFilter);
+      }
+      QueryResults<ProjectionEntity> results = datastore.run(queryBuilder.build());
+      while (results.hasNext()) {
+        ProjectionEntity timestamp = results.next();
+        boolean isRoot = timestamp.getLong("rootid") == 0;
+        tally.add(timestamp.getLong("time"), isRoot ? 1 : 0, isRoot ? 0 : 1);
+      }
+      return tally.getCounts();
+    }
+
+    PropertyFilter bucketFilter = PropertyFilter.eq("bucket", stored.name());
+    Query<Entity> query =
+        Query.newEntityQueryBuilder()
+            .setKind("CommentRollup")
+            .setFilter(getTimeFilter("start", rangeStart, rangeEnd, bucketFilter))
+            .setOrderBy(OrderBy.asc("start"))
+            .build();
+    QueryResults<Entity> results = datastore.run(query);
+    while (results.hasNext()) {
+      Entity row = results.next();
+      tally.add(row.getLong("start"), row.getLong("rootcomments"), row.getLong("replies"));
+    }
+    return tally.getCounts();
+  }
+
+  /*
+   * Starts rebuilding every bucket's counts in the background. Returns false if a
+   * rebuild is already running on this instance, in which case nothing is started.
+   * Background threads can not reach memcache, so the content version is bumped by
+   * the next request once the rebuild is done.
+   */
+  public static boolean startRebuild() {
+    if (!isRebuilding.compareAndSet(false, true)) {
+      return false;
+    }
+    rebuilder.execute(
+        () -> {
+          try {
+            lastRebuildRows.set(rebuild());
+            ContentVersion.requestBump();
+          } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not rebuild comment rollups", e);
+          } finally {
+            isRebuilding.set(false);
+          }
+        });
+    return true;
+  }
+
+  // Returns whether a rebuild is running and how many rows the last one wrote
+  public static Map<String, Long> getStats() {
+    Map<String, Long> stats = new HashMap<>();
+    stats.put("rebuilding", isRebuilding.get() ? 1L : 0L);
+    stats.put("lastrebuildrows", lastRebuildRows.get());
+    return stats;
+  }
+
+  /*
+   * Recomputes every bucket's counts from the DateEntry entities and replaces the
+   * stored ones with them. Returns the number of rows written. Used once to build the
+   * counts for existing comments and after a bulk import; comments written while it
+   * runs may be miscounted.
+   *
+   * The entries are read with a projection on time and rootid in time order, so each
+   * bucket's entries arrive together and are tallied in primitive counters, one pair
+   * per bucket length. A bucket's row is written as soon as its last entry is read.
+   */
+  private static long rebuild() {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Key> oldRowsQuery = Query.newKeyQueryBuilder().setKind("CommentRollup").build();
+    Set<Key> oldRows = Sets.newHashSet(datastore.run(oldRowsQuery));
+    // Rows of the daily counts these rollups replaced
+    Query<Key> oldDaysQuery = Query.newKeyQueryBuilder().setKind("DayCount").build();
+    Iterators.addAll(oldRows, datastore.run(oldDaysQuery));
+
+    Query<ProjectionEntity> query =
+        Query.newProjectionEntityQueryBuilder()
+            .setKind("DateEntry")
+            .setProjection("time", "rootid")
+            .setOrderBy(OrderBy.asc("time"))
+            .build();
+    QueryResults<ProjectionEntity> results = datastore.run(query);
+
+    ArrayList<Entity> newRows = new ArrayList<>();
+    long numRows = 0;
+    // The current bucket of each length covers the times from bucketStart up to bucketEndMs
+    ZonedDateTime[] bucketStart = new ZonedDateTime[storedBuckets.length];
+    long[] bucketEndMs = new long[storedBuckets.length];
+    int[] rootComments = new int[storedBuckets.length];
+    int[] replies = new int[storedBuckets.length];
+    while (results.hasNext()) {
+      ProjectionEntity timestamp = results.next();
+      long time = timestamp.getLong("time");
+      boolean isRoot = timestamp.getLong("rootid") == 0;
+      for (int i = 0; i < storedBuckets.length; i++) {
+        if (bucketStart[i] == null || time >= bucketEndMs[i]) {
+          if (bucketStart[i] != null) {
+            newRows.add(createRow(storedBuckets[i], bucketStart[i], rootComments[i], replies[i]));
+          }
+          bucketStart[i] = storedBuckets[i].getStart(toUtc(time));
+          bucketEndMs[i] = storedBuckets[i].getNext(bucketStart[i]).toInstant().toEpochMilli();
+          rootComments[i] = 0;
+          replies[i] = 0;
+        }
+        if (isRoot) {
+          rootComments[i]++;
+        } else {
+          replies[i]++;
+        }
+      }
+      if (newRows.size() >= maxEntitiesPerWrite) {
+        numRows += putRows(datastore, newRows, oldRows);
+      }
+    }
+    for (int i = 0; i < storedBuckets.length; i++) {
+      if (bucketStart[i] != null) {
+        newRows.add(createRow(storedBuckets[i], bucketStart[i], rootComments[i], replies[i]));
+      }
+    }
+    numRows += putRows(datastore, newRows, oldRows);
+
+    // Whatever is left counted buckets that no longer have comments
+    for (List<Key> batch : Lists.partition(new ArrayList<>(oldRows), maxEntitiesPerWrite)) {
+      datastore.delete(batch.toArray(new Key[0]));
+    }
+    return numRows;
+  }
+
+  /*
+   * Returns the coarsest stored bucket length that the requested buckets in zone, and
+   * both ends of the range, are made up of exactly, or null if there is none
+   */
+  private static RollupBucket getStoredBucket(
+      ZonedDateTime rangeStart, ZonedDateTime rangeEnd, RollupBucket bucket, ZoneId zone) {
+    for (RollupBucket stored : storedBuckets) {
+      if (!bucket.isMadeOf(stored)) {
+        continue;
+      }
+      boolean zoneFits =
+          (stored == RollupBucket.HOUR)
+              ? hasWholeHourOffset(zone, rangeStart) && hasWholeHourOffset(zone, rangeEnd)
+              : zone.normalized().equals(ZoneOffset.UTC);
+      if (zoneFits && isStartOf(stored, rangeStart) && isStartOf(stored, rangeEnd)) {
+        return stored;
+      }
+    }
+    return null;
+  }
+
+  // Returns whether zone is a whole number of hours from UTC at time, or now if it is null
+  private static boolean hasWholeHourOffset(ZoneId zone, ZonedDateTime time) {
+    Instant instant = (time == null) ? Instant.now() : time.toInstant();
+    return zone.getRules().getOffset(instant).getTotalSeconds() % 3600 == 0;
+  }
+
+  // Returns whether time, if not null, is the start of a UTC bucket of the given length
+  private static boolean isStartOf(RollupBucket bucket, ZonedDateTime time) {
+    if (time == null) {
+      return true;
+    }
+    ZonedDateTime utcTime = time.withZoneSameInstant(ZoneOffset.UTC);
+    return bucket.getStart(utcTime).equals(utcTime);
+  }
+
+  /*
+   * Returns a filter restricting 'property' to the times from rangeStart up to rangeEnd,
+   * combined with baseFilter if it is not null, or null if nothing is restricted
+   */
+  private static Filter getTimeFilter(
+      String property, ZonedDateTime rangeStart, ZonedDateTime rangeEnd, Filter baseFilter) {
+    ArrayList<Filter> filters = new ArrayList<>();
+    if (baseFilter != null) {
+      filters.add(baseFilter);
+    }
+    if (rangeStart != null) {
+      filters.add(PropertyFilter.ge(property, rangeStart.toInstant().toEpochMilli()));
+    }
+    if (rangeEnd != null) {
+      filters.add(PropertyFilter.lt(property, rangeEnd.toInstant().toEpochMilli()));
+    }
+    if (filters.isEmpty()) {
+      return null;
+    } else if (filters.size() == 1) {
+      return filters.get(0);
+    }
+    return CompositeFilter.and(
+        filters.get(0), filters.subList(1, filters.size()).toArray(new Filter[0]));
+  }
+
+  // Adds sign to the root comment or reply count of every stored bucket containing time
+  private static void addToDeltas(
+      Map<String, DayComments> deltas, long time, long rootId, int sign) {
+    for (RollupBucket bucket : storedBuckets) {
+      String rowName = getRowName(bucket, bucket.getStart(toUtc(time)));
+      DayComments prevDelta = deltas.getOrDefault(rowName, DayComments.create(0, 0));
+      if (rootId == 0) {
+        deltas.put(
+            rowName, DayComments.create(prevDelta.rootComments() + sign, prevDelta.replies()));
+      } else {
+        deltas.put(
+            rowName, DayComments.create(prevDelta.rootComments(), prevDelta.replies() + sign));
+      }
+    }
+  }
+
+  // Adds each of deltas to the counts of the row it is keyed by
+  private static void addToRows(Map<String, DayComments> deltas) {
+    // Moving a comment within a bucket leaves that bucket's row unchanged
+    deltas.values().removeIf(delta -> delta.rootComments() == 0 && delta.replies() == 0);
+    ArrayList<String> rowNames = new ArrayList<>(deltas.keySet());
+    for (List<String> batch : Lists.partition(rowNames, maxRowsPerTransaction)) {
+      addToRowsInTransaction(batch, deltas);
+    }
+  }
+
+  /*
+   * Adds the deltas of the named rows to their counts in a single transaction, retried
+   * when it conflicts with another update. Rows left without comments are deleted.
+   */
+  private static void addToRowsInTransaction(
+      List<String> rowNames, Map<String, DayComments> deltas) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("CommentRollup");
+    Key[] keys = new Key[rowNames.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = keyFactory.newKey(rowNames.get(i));
+    }
+
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        List<Entity> rows = transaction.fetch(keys);
+        for (int i = 0; i < keys.length; i++) {
+          Entity row = rows.get(i);
+          DayComments delta = deltas.get(rowNames.get(i));
+          long rootComments = (row == null) ? 0 : row.getLong("rootcomments");
+          long replies = (row == null) ? 0 : row.getLong("replies");
+          rootComments += delta.rootComments();
+          replies += delta.replies();
+          if (rootComments <= 0 && replies <= 0) {
+            transaction.delete(keys[i]);
+          } else {
+            String rowName = rowNames.get(i);
+            int separator = rowName.indexOf('-');
+            RollupBucket bucket = RollupBucket.valueOf(rowName.substring(0, separator));
+            ZonedDateTime start = toUtc(Long.parseLong(rowName.substring(separator + 1)));
+            transaction.put(createRow(bucket, start, (int) rootComments, (int) replies));
+          }
+        }
+        transaction.commit();
+        return;
+      } catch (DatastoreException e) {
+        // Another comment in one of the same buckets was counted first, so try again
+        if (attempt == maxAttempts) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  // Writes newRows, removes them from oldRows and empties newRows
+  private static int putRows(Datastore datastore, List<Entity> newRows, Set<Key> oldRows) {
+    int numRows = newRows.size();
+    for (List<Entity> batch : Lists.partition(newRows, maxEntitiesPerWrite)) {
+      datastore.put(batch.toArray(new Entity[0]));
+    }
+    for (Entity row : newRows) {
+      oldRows.remove(row.getKey());
+    }
+    newRows.clear();
+    return numRows;
+  }
+
+  private static Entity createRow(
+      RollupBucket bucket, ZonedDateTime start, int rootComments, int replies) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("CommentRollup");
+    return Entity.newBuilder(keyFactory.newKey(getRowName(bucket, start)))
+        .set("bucket", bucket.name())
+        .set("start", start.toInstant().toEpochMilli())
+        .set("rootcomments", rootComments)
+        .set("replies", replies)
+        .build();
+  }
+
+  // Returns the key name of the row counting the bucket of the given length at start
+  private static String getRowName(RollupBucket bucket, ZonedDateTime start) {
+    return bucket.name() + "-" + start.toInstant().toEpochMilli();
+  }
+
+  private static ZonedDateTime toUtc(long time) {
+    return Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC);
+  }
+
+  /*
+   * Sums counts into the buckets of one length in one zone. Times must be added in
+   * ascending order; only the first time in each bucket has its bucket worked out, and
+   * a bucket's counts are recorded once the next bucket starts.
+   */
+  private static class BucketTally {
+    private final Map<String, DayComments> counts = new LinkedHashMap<>();
+    private final RollupBucket bucket;
+    private final ZoneId zone;
+    // The label of the current bucket, which covers the times up to bucketEndMs
+    private String label;
+    private long bucketEndMs = Long.MIN_VALUE;
+    private int rootComments;
+    private int replies;
+
+    BucketTally(RollupBucket bucket, ZoneId zone) {
+      this.bucket = bucket;
+      this.zone = zone;
+    }
+
+    void add(long time, long newRootComments, long newReplies) {
+      if (time >= bucketEndMs) {
+        recordCurrentBucket();
+        ZonedDateTime start = bucket.getStart(Instant.ofEpochMilli(time).atZone(zone));
+        label = bucket.getLabel(start);
+        bucketEndMs = bucket.getNext(start).toInstant().toEpochMilli();
+        rootComments = 0;
+        replies = 0;
+      }
+      rootComments += newRootComments;
+      replies += newReplies;
+    }
+
+    // Returns the counts of every bucket added to, keyed by label in order
+    Map<String, DayComments> getCounts() {
+      recordCurrentBucket();
+      label = null;
+      bucketEndMs = Long.MIN_VALUE;
+      return counts;
+    }
+
+    /*
+     * Adds the current bucket's counts to those of its label. Two buckets share a label
+     * when clocks go back, such as the repeated hour at the end of daylight saving time,
+     * and are then shown as one.
+     */
+    private void recordCurrentBucket() {
+      if (label != null) {
+        counts.merge(
+            label,
+            DayComments.create(rootComments, replies),
+            (earlier, later) ->
+                DayComments.create(
+                    earlier.rootComments() + later.rootComments(),
+                    earlier.replies() + later.replies()));
+      }
+    }
+  }
+}
@@ -0,0 +1,197 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Caches comment threads, each made up of a root comment entity followed by all of
+ * its replies, keyed by the ID of the root. Threads hold only what is stored in
+ * datastore, so they can be shared between users. Servlets that change a comment
+ * invalidate the thread it belongs to on their own instance. Each thread remembers
+ * the ContentVersion it was read at and is only served while that is still current,
+ * so a response never pairs an ETag for newer content with an older thread.
+ */
+public class CommentThreadCache {
+
+  private static final int maxCachedThreads = 1000;
+
+  // How long a thread is served from memory before it is read from datastore again
+  private static final long threadTtlSeconds = 10;
+
+  private static final Cache<Long, CachedThread> threads =
+      CacheBuilder.newBuilder()
+          .maximumSize(maxCachedThreads)
+          .expireAfterWrite(threadTtlSeconds, TimeUnit.SECONDS)
+          .recordStats()
+          .build();
+
+  /*
+   * Bumped by every invalidation. A load that started before an invalidation may have
+   * read the old thread, so it is only cached if the generation has not moved since.
+   * Guarded by the lock on threads together with the puts and invalidations.
+   */
+  private static long generation = 0;
+
+  /*
+   * Returns the threads rooted at each of rootKeys, keyed by root ID. Threads that are
+   * not cached are read with one batched get for their roots and one query for their
+   * replies. Threads cached before the content version last moved are read again.
+   * Roots that no longer exist are left out.
+   */
+  public static Map<Long, List<Entity>> getThreads(List<Key> rootKeys) {
+    // Read before the threads so that what is loaded is at least as new as version
+    long version = ContentVersion.get();
+    ArrayList<Long> rootIds = new ArrayList<>();
+    for (Key rootKey : rootKeys) {
+      rootIds.add(rootKey.getId());
+    }
+    Map<Long, List<Entity>> found = new HashMap<>();
+    for (Map.Entry<Long, CachedThread> entry : threads.getAllPresent(rootIds).entrySet()) {
+      if (entry.getValue().version() == version) {
+        found.put(entry.getKey(), entry.getValue().thread());
+      }
+    }
+
+    ArrayList<Key> missingKeys = new ArrayList<>();
+    for (Key rootKey : rootKeys) {
+      if (!found.containsKey(rootKey.getId())) {
+        missingKeys.add(rootKey);
+      }
+    }
+    if (missingKeys.isEmpty()) {
+      return found;
+    }
+
+    long startGeneration;
+    synchronized (threads) {
+      startGeneration = generation;
+    }
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    ArrayList<Entity> roots = new ArrayList<>();
+    Iterator<Entity> results = datastore.get(missingKeys);
+    while (results.hasNext()) {
+      roots.add(results.next());
+    }
+
+    Map<Long, List<Entity>> repliesByRoot = getChildComments(roots);
+    Map<Long, CachedThread> loaded = new HashMap<>();
+    for (Entity root : roots) {
+      long rootId = root.getKey().getId();
+      List<Entity> thread =
+          ImmutableList.<Entity>builder().add(root).addAll(repliesByRoot.get(rootId)).build();
+      loaded.put(rootId, CachedThread.create(thread, version));
+      found.put(rootId, thread);
+    }
+    synchronized (threads) {
+      if (generation == startGeneration) {
+        threads.putAll(loaded);
+      }
+    }
+    return found;
+  }
+
+  // Drops the cached thread that contains comment, whether it is a root or a reply
+  public static void invalidateThreadOf(Entity comment) {
+    long rootId = comment.getLong("rootid");
+    invalidate((rootId == 0) ? comment.getKey().getId() : rootId);
+  }
+
+  // Drops the cached thread rooted at the comment with ID rootId
+  public static void invalidate(long rootId) {
+    synchronized (threads) {
+      generation++;
+      threads.invalidate(rootId);
+    }
+  }
+
+  // Drops every cached thread
+  public static void invalidateAll() {
+    synchronized (threads) {
+      generation++;
+      threads.invalidateAll();
+    }
+  }
+
+  // Returns the hit, miss and eviction counts of the cache since startup
+  public static CacheStats getStats() {
+    return threads.stats();
+  }
+
+  // Returns the number of threads currently cached
+  public static long size() {
+    return threads.size();
+  }
+
+  /*
+   * Fetches the replies of every comment in roots with a single query and groups them
+   * by root ID. Datastore has no 'in' filter, so the query asks for the range of
+   * rootid values spanning all of the roots and replies in other threads inside the
+   * range are dropped. Replies within each group are in key order.
+   */
+  private static Map<Long, List<Entity>> getChildComments(List<Entity> roots) {
+    Map<Long, List<Entity>> repliesByRoot = new HashMap<>();
+    if (roots.isEmpty()) {
+      return repliesByRoot;
+    }
+    long minRootId = Long.MAX_VALUE;
+    long maxRootId = Long.MIN_VALUE;
+    for (Entity root : roots) {
+      long rootId = root.getKey().getId();
+      repliesByRoot.put(rootId, new ArrayList<>());
+      minRootId = Math.min(minRootId, rootId);
+      maxRootId = Math.max(maxRootId, rootId);
+    }
+
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Entity> query =
+        Query.newEntityQueryBuilder()
+            .setKind("Comment")
+            .setFilter(
+                CompositeFilter.and(
+                    PropertyFilter.ge("rootid", minRootId), PropertyFilter.le("rootid", maxRootId)))
+            .build();
+    QueryResults<Entity> results = datastore.run(query);
+    while (results.hasNext()) {
+      Entity reply = results.next();
+      List<Entity> replies = repliesByRoot.get(reply.getLong("rootid"));
+      if (replies != null) {
+        replies.add(reply);
+      }
+    }
+    for (List<Entity> replies : repliesByRoot.values()) {
+      replies.sort(Comparator.comparingLong(reply -> reply.getKey().getId()));
+    }
+    return repliesByRoot;
+  }
+}
@@ -0,0 +1,298 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.BlobValue;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityValue;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.ListValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.datastore.Value;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/*
+ * Stores each comment thread as a single CommentThread entity, so that a page of
+ * threads can be read with one query. A document has the same ID and properties as
+ * its root comment, plus a 'replies' list holding the reply entities of the thread
+ * in ID order. Comment entities remain the source of truth; documents are only kept
+ * up to date while the 'threadstorage' system property is set to 'documents'.
+ * A thread too large to fit in one entity gets a document without a 'replies' list,
+ * and its replies are read from the Comment entities instead.
+ */
+public class CommentThreadDocuments {
+
+  // The largest number of entities datastore accepts in a single write
+  private static final int maxEntitiesPerWrite = 500;
+
+  // The number of times a document update is attempted when its transaction conflicts
+  private static final int maxAttempts = 5;
+
+  /*
+   * The estimated size in bytes above which a document is stored without its replies.
+   * Datastore rejects entities over 1 MB, and the estimate leaves room for what it
+   * does not count exactly.
+   */
+  private static final long maxDocumentBytes = 900_000;
+
+  // The estimated size in bytes of a property value that is not a string, blob or list
+  private static final long fixedValueBytes = 32;
+
+  // Returns whether comment threads are stored and read as documents
+  public static boolean isEnabled() {
+    return System.getProperty("threadstorage", "entities").equals("documents");
+  }
+
+  // Creates the document for a thread made of its root followed by all of its replies
+  public static Entity createDocument(List<Entity> thread) {
+    Entity root = thread.get(0);
+    return withReplies(
+        Entity.newBuilder(getDocumentKey(root.getKey().getId()), root).build(),
+        thread.subList(1, thread.size()));
+  }
+
+  // Returns the thread stored in document, made of its root followed by all of its replies
+  public static List<Entity> toThread(Entity document) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("Comment");
+    ArrayList<Entity> thread = new ArrayList<>();
+    thread.add(
+        Entity.newBuilder(keyFactory.newKey(document.getKey().getId()), document)
+            .remove("replies")
+            .build());
+    if (document.contains("replies")) {
+      thread.addAll(getReplies(document));
+    } else {
+      thread.addAll(getStoredReplies(datastore, document.getKey().getId()));
+    }
+    return thread;
+  }
+
+  // Adds reply to the document of the thread it belongs to
+  public static void addReply(Entity reply) {
+    updateDocument(
+        reply.getLong("rootid"),
+        document -> {
+          if (!document.contains("replies")) {
+            return document;
+          }
+          List<Entity> replies = getReplies(document);
+          // A retried write may add the same reply twice
+          replies.removeIf(stored -> stored.getKey().equals(reply.getKey()));
+          replies.add(reply);
+          replies.sort(Comparator.comparingLong(entity -> entity.getKey().getId()));
+          return withReplies(document, replies);
+        });
+  }
+
+  /*
+   * Replaces the stored copy of comment, which may be a root or a reply, with comment
+   * in the document of its thread
+   */
+  public static void updateComment(Entity comment) {
+    long commentId = comment.getKey().getId();
+    long rootId = comment.getLong("rootid");
+    updateDocument(
+        (rootId == 0) ? commentId : rootId,
+        document -> {
+          if (!document.contains("replies")) {
+            return (rootId == 0) ? Entity.newBuilder(document.getKey(), comment).build() : document;
+          }
+          List<Entity> replies = getReplies(document);
+          if (rootId == 0) {
+            return withReplies(Entity.newBuilder(document.getKey(), comment).build(), replies);
+          }
+          replies.replaceAll(reply -> (reply.getKey().getId() == commentId) ? comment : reply);
+          return withReplies(document, replies);
+        });
+  }
+
+  // Removes the replies with IDs in replyIds from the document of thread rootId
+  public static void removeReplies(long rootId, Set<Long> replyIds) {
+    updateDocument(
+        rootId,
+        document -> {
+          // A document without replies stays that way until the next migration
+          if (!document.contains("replies")) {
+            return document;
+          }
+          List<Entity> replies = getReplies(document);
+          replies.removeIf(reply -> replyIds.contains(reply.getKey().getId()));
+          return withReplies(document, replies);
+        });
+  }
+
+  /*
+   * Builds a document for every thread from the Comment entities, replacing any existing
+   * document. Roots are read a page at a time, so memory use is bounded by the page size.
+   * Returns the number of documents written.
+   */
+  public static long migrate() {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Key> query =
+        Query.newKeyQueryBuilder()
+            .setKind("Comment")
+            .setFilter(PropertyFilter.eq("rootid", 0))
+            .build();
+    QueryResults<Key> results = datastore.run(query);
+
+    long numDocuments = 0;
+    while (results.hasNext()) {
+      ArrayList<Key> rootKeys = new ArrayList<>();
+      while (results.hasNext() && rootKeys.size() < maxEntitiesPerWrite) {
+        rootKeys.add(results.next());
+      }
+      // Read from datastore rather than the thread cache, which may be stale
+      ArrayList<Entity> documents = new ArrayList<>();
+      Iterator<Entity> roots = datastore.get(rootKeys);
+      while (roots.hasNext()) {
+        Entity root = roots.next();
+        ArrayList<Entity> thread = new ArrayList<>();
+        thread.add(root);
+        thread.addAll(getStoredReplies(datastore, root.getKey().getId()));
+        documents.add(createDocument(thread));
+      }
+      datastore.put(documents.toArray(new Entity[0]));
+      numDocuments += documents.size();
+    }
+    return numDocuments;
+  }
+
+  // Returns the key of the document for the thread rooted at the comment with ID rootId
+  public static Key getDocumentKey(long rootId) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("CommentThread");
+    return keyFactory.newKey(rootId);
+  }
+
+  /*
+   * Replaces the document of thread rootId with the result of applying edit to it, in a
+   * transaction that is retried up to maxAttempts times when another write to the same
+   * thread commits first. Does nothing if the thread has no document.
+   */
+  private static void updateDocument(long rootId, UnaryOperator<Entity> edit) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Entity document = transaction.get(getDocumentKey(rootId));
+        // The root of this thread was deleted or never migrated
+        if (document == null) {
+          return;
+        }
+        transaction.put(edit.apply(document));
+        transaction.commit();
+        return;
+      } catch (DatastoreException e) {
+        if (attempt == maxAttempts) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  // Returns the Comment entities replying to the root with ID rootId, in ID order
+  private static List<Entity> getStoredReplies(Datastore datastore, long rootId) {
+    Query<Entity> query =
+        Query.newEntityQueryBuilder()
+            .setKind("Comment")
+            .setFilter(PropertyFilter.eq("rootid", rootId))
+            .build();
+    ArrayList<Entity> replies = new ArrayList<>();
+    datastore.run(query).forEachRemaining(replies::add);
+    replies.sort(Comparator.comparingLong(entity -> entity.getKey().getId()));
+    return replies;
+  }
+
+  // Returns the reply entities stored in document, in ID order
+  private static List<Entity> getReplies(Entity document) {
+    ArrayList<Entity> replies = new ArrayList<>();
+    List<? extends Value<?>> values = document.getList("replies");
+    for (Value<?> value : values) {
+      FullEntity<?> reply = ((EntityValue) value).get();
+      replies.add(Entity.newBuilder((Key) reply.getKey(), reply).build());
+    }
+    return replies;
+  }
+
+  /*
+   * Returns document with its replies set to replies, or with no 'replies' list at all
+   * if the result would be larger than maxDocumentBytes
+   */
+  private static Entity withReplies(Entity document, List<Entity> replies) {
+    Entity withList = Entity.newBuilder(document).set("replies", toListValue(replies)).build();
+    if (estimateSize(withList) <= maxDocumentBytes) {
+      return withList;
+    }
+    return Entity.newBuilder(document).remove("replies").build();
+  }
+
+  // Returns roughly how many bytes entity takes up when stored, counting names and values
+  private static long estimateSize(FullEntity<?> entity) {
+    long size = fixedValueBytes;
+    for (String name : entity.getNames()) {
+      size += name.length() + estimateSize(entity.getValue(name));
+    }
+    return size;
+  }
+
+  private static long estimateSize(Value<?> value) {
+    if (value instanceof StringValue) {
+      return ((StringValue) value).get().getBytes(StandardCharsets.UTF_8).length;
+    }
+    if (value instanceof BlobValue) {
+      return ((BlobValue) value).get().getLength();
+    }
+    if (value instanceof EntityValue) {
+      return estimateSize(((EntityValue) value).get());
+    }
+    if (value instanceof ListValue) {
+      long size = 0;
+      for (Value<?> element : ((ListValue) value).get()) {
+        size += estimateSize(element);
+      }
+      return size;
+    }
+    return fixedValueBytes;
+  }
+
+  // Converts replies to a list value that is embedded in a document without being indexed
+  private static ListValue toListValue(List<Entity> replies) {
+    ListValue.Builder builder = ListValue.newBuilder();
+    for (Entity reply : replies) {
+      builder.addValue(EntityValue.newBuilder(reply).setExcludeFromIndexes(true).build());
+    }
+    return builder.build();
+  }
+}
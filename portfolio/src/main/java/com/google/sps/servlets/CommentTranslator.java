@@ -0,0 +1,30 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.List;
+
+/*
+ * Translates comment text into another language. TranslationCache sends all of the
+ * text that a page needs translated through a single call to translate.
+ */
+public interface CommentTranslator {
+
+  /*
+   * Returns the translations of texts into language langCode, in the same order
+   * as texts
+   */
+  List<String> translate(List<String> texts, String langCode);
+}
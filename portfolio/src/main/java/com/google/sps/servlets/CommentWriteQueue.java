@@ -0,0 +1,202 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Entity;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.Json;
+import javax.servlet.http.HttpServletResponse;
+
+/*
+ * Writes new comments and replies in the background so that submitting one does not
+ * wait for datastore. Submissions are put on a bounded queue and answered with a 202
+ * holding the new comment's ID; worker threads then write whatever has queued up with
+ * one batched put. Used while the 'commentwrites' system property is set to 'async'.
+ * Comments still queued when the instance shuts down are written before it exits, and
+ * comments that can not be written are logged in full so that they can be restored.
+ */
+public class CommentWriteQueue {
+
+  private static final int maxQueuedComments = 1000;
+
+  // The most comments written by one put, each of which has up to three entities
+  private static final int maxCommentsPerWrite = 100;
+
+  private static final int numWorkers = 2;
+
+  // The number of times a batch is written before its comments are given up on
+  private static final int maxAttempts = 3;
+
+  // Each element holds the entities of one comment, as created by createCommentEntities
+  private static final BlockingQueue<List<Entity>> queue =
+      new ArrayBlockingQueue<>(maxQueuedComments);
+
+  // Started by the first submission, so that no threads run while writes are synchronous
+  private static ExecutorService workers;
+
+  private static final AtomicLong numAccepted = new AtomicLong();
+  private static final AtomicLong numRejected = new AtomicLong();
+  private static final AtomicLong numWritten = new AtomicLong();
+  private static final AtomicLong numFailed = new AtomicLong();
+  private static final AtomicLong lastBatchComments = new AtomicLong();
+  private static final AtomicLong lastBatchMs = new AtomicLong();
+
+  // How long shutdown waits for workers to finish the batch they are writing
+  private static final long shutdownWaitSeconds = 5;
+
+  private static final Logger logger = Logger.getLogger(CommentWriteQueue.class.getName());
+
+  // Returns whether new comments are written in the background
+  public static boolean isEnabled() {
+    return System.getProperty("commentwrites", "sync").equals("async");
+  }
+
+  /*
+   * Queues newEntities, the entities of one new comment, to be written. Responds with
+   * a 202 and the comment's ID if it was queued, or a 503 if the queue is full, in
+   * which case the client should retry later. Returns whether it was queued.
+   */
+  public static boolean submit(List<Entity> newEntities, HttpServletResponse response)
+      throws IOException {
+    startWorkersIfNeeded();
+    if (!queue.offer(newEntities)) {
+      numRejected.incrementAndGet();
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return false;
+    }
+    numAccepted.incrementAndGet();
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setContentType("application/json");
+    response.getWriter().println(getAcceptedBody(newEntities));
+    return true;
+  }
+
+  // Returns the body of the response to a submission of newEntities that was queued
+  public static String getAcceptedBody(List<Entity> newEntities) {
+    long commentId = newEntities.get(0).getKey().getId();
+    return Json.createObjectBuilder().add("id", commentId).build().toString();
+  }
+
+  /*
+   * Returns the queue depth, the number of comments accepted, rejected and written
+   * and the rate at which the most recent batch was written
+   */
+  public static Map<String, Long> getStats() {
+    Map<String, Long> stats = new HashMap<>();
+    stats.put("depth", (long) queue.size());
+    stats.put("accepted", numAccepted.get());
+    stats.put("rejected", numRejected.get());
+    stats.put("written", numWritten.get());
+    stats.put("failed", numFailed.get());
+    stats.put("lastbatchcomments", lastBatchComments.get());
+    long batchMs = Math.max(1, lastBatchMs.get());
+    stats.put("drainpersecond", lastBatchComments.get() * 1000 / batchMs);
+    return stats;
+  }
+
+  private static synchronized void startWorkersIfNeeded() {
+    if (workers != null) {
+      return;
+    }
+    workers = Executors.newFixedThreadPool(numWorkers);
+    for (int i = 0; i < numWorkers; i++) {
+      workers.execute(CommentWriteQueue::drain);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(CommentWriteQueue::drainOnShutdown));
+  }
+
+  /*
+   * Stops the workers and writes every comment still queued, so that none that were
+   * answered with a 202 are lost when the instance shuts down
+   */
+  private static void drainOnShutdown() {
+    workers.shutdownNow();
+    try {
+      workers.awaitTermination(shutdownWaitSeconds, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    while (!queue.isEmpty()) {
+      ArrayList<List<Entity>> batch = new ArrayList<>();
+      queue.drainTo(batch, maxCommentsPerWrite);
+      writeBatch(batch);
+    }
+  }
+
+  // Repeatedly waits for queued comments and writes all of them that are available
+  private static void drain() {
+    while (!Thread.currentThread().isInterrupted()) {
+      ArrayList<List<Entity>> batch = new ArrayList<>();
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      queue.drainTo(batch, maxCommentsPerWrite - 1);
+      writeBatch(batch);
+    }
+  }
+
+  // Writes the entities of every comment in batch with a single call
+  private static void writeBatch(List<List<Entity>> batch) {
+    ArrayList<Entity> newEntities = new ArrayList<>();
+    for (List<Entity> commentEntities : batch) {
+      newEntities.addAll(commentEntities);
+    }
+
+    long startTime = System.currentTimeMillis();
+    RuntimeException lastFailure = null;
+    for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+      try {
+        // Only the put is retried, since it is the only step that is safe to repeat
+        UtilityFunctions.putCommentEntities(newEntities);
+      } catch (RuntimeException e) {
+        lastFailure = e;
+        continue;
+      }
+      numWritten.addAndGet(batch.size());
+      lastBatchComments.set(batch.size());
+      lastBatchMs.set(System.currentTimeMillis() - startTime);
+      try {
+        UtilityFunctions.recordWrittenComments(newEntities);
+      } catch (RuntimeException e) {
+        // The comments are stored; the threads and rollups catch up when next rebuilt
+        logger.log(Level.WARNING, "Could not add written comments to their threads", e);
+      }
+      ContentVersion.requestBump();
+      return;
+    }
+    numFailed.addAndGet(batch.size());
+    // The clients were already told these comments were accepted, so keep their contents
+    for (List<Entity> commentEntities : batch) {
+      logger.log(
+          Level.SEVERE, "Dropped comment after " + maxAttempts + " attempts: " + commentEntities);
+    }
+    logger.log(Level.SEVERE, "Could not write " + batch.size() + " queued comments", lastFailure);
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/*
+ * Tracks a version number for all of the data served by the comment and chart
+ * endpoints, shared by every server instance through memcache. Servlets bump the
+ * version after every change to comments, votes or language requests, so responses
+ * can carry ETags derived from it and unchanged data is answered with a 304.
+ */
+public class ContentVersion {
+
+  private static final String versionKey = "content-version";
+
+  private static final AtomicBoolean isBumpPending = new AtomicBoolean();
+
+  /*
+   * Returns the current version. If memcache has lost the version, it is restarted at
+   * the current time in milliseconds, which is larger than any version handed out
+   * before as long as there was on average less than one change per millisecond.
+   * Incrementing by zero reads and restarts the version in one atomic call, so an
+   * eviction between the two can not be observed. If memcache is unavailable the
+   * current time is returned, so no response is wrongly answered with a 304.
+   */
+  public static long get() {
+    if (isBumpPending.getAndSet(false)) {
+      bump();
+    }
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    long now = System.currentTimeMillis();
+    Long version = memcache.increment(versionKey, 0, now);
+    return (version == null) ? now : version;
+  }
+
+  // Records that data served by the comment or chart endpoints has changed
+  public static void bump() {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    memcache.increment(versionKey, 1, System.currentTimeMillis());
+  }
+
+  /*
+   * Records that data has changed from a background thread, which cannot reach memcache.
+   * The version is bumped by the next request this instance serves that reads it.
+   */
+  public static void requestBump() {
+    isBumpPending.set(true);
+  }
+
+  /*
+   * Sets the ETag of the response to request, derived from the current version, the
+   * query string and variant, which distinguishes responses that differ for the same
+   * query string (such as those for different users). Returns true and sends a 304 if
+   * the client already has this version, in which case nothing else should be written.
+   */
+  public static boolean checkNotModified(
+      HttpServletRequest request, HttpServletResponse response, String variant) {
+    long version = get();
+    setETag(request, response, variant, version);
+    return isNotModified(request, response, variant, version);
+  }
+
+  /*
+   * Returns true and sends a 304 with the ETag for version if the client already has
+   * that version of the response to request, without setting the ETag otherwise. Lets a
+   * servlet avoid reading its data before knowing it has to, and then tag the response
+   * with setETag and the version of the data it actually read.
+   */
+  public static boolean isNotModified(
+      HttpServletRequest request, HttpServletResponse response, String variant, long version) {
+    String eTag = getETag(request, variant, version);
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String clientTag : ifNoneMatch.split(",")) {
+      clientTag = clientTag.trim();
+      if (clientTag.startsWith("W/")) {
+        clientTag = clientTag.substring(2);
+      }
+      if (clientTag.equals(eTag) || clientTag.equals("*")) {
+        setETag(request, response, variant, version);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Sets the ETag of the response to request to the one for variant at version
+  public static void setETag(
+      HttpServletRequest request, HttpServletResponse response, String variant, long version) {
+    response.setHeader("ETag", getETag(request, variant, version));
+    response.setHeader("Cache-Control", "private, no-cache");
+  }
+
+  // Derives an ETag from version, the query string of request and variant
+  private static String getETag(HttpServletRequest request, String variant, long version) {
+    String queryString = (request.getQueryString() == null) ? "" : request.getQueryString();
+    String hash =
+        Hashing.sha256()
+            .hashString(queryString + "\n" + variant, StandardCharsets.UTF_8)
+            .toString()
+            .substring(0, 16);
+    return "\"" + version + "-" + hash + "\"";
+  }
+}
@@ -17,22 +17,26 @@ package com.google.sps.servlets;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.EntityQuery.Builder;
+import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
 import com.google.cloud.datastore.StructuredQuery;
 import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
-import com.google.cloud.translate.Translate;
-import com.google.cloud.translate.TranslateOptions;
-import com.google.cloud.translate.Translation;
 import com.google.common.io.CharStreams;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -54,6 +58,14 @@ public class DataServlet extends HttpServlet {
     if (!userService.isUserLoggedIn()) {
       return;
     }
+    if (VoteBuffer.isEnabled()) {
+      VoteBuffer.flushIfDue();
+    }
+    // Users see different vote and edit flags for the same comments
+    if (ContentVersion.checkNotModified(
+        request, response, UtilityFunctions.getCurrentUserId())) {
+      return;
+    }
     int maxComments =
         Integer.parseInt(
             UtilityFunctions.getFieldFromResponse(request, "maxcomments", defaultMaxComment));
@@ -62,32 +74,157 @@ public class DataServlet extends HttpServlet {
     String filterMetric = UtilityFunctions.getFieldFromResponse(request, "filterby", "comment");
     String filterText = UtilityFunctions.getFieldFromResponse(request, "filtertext", "");
     String commentLanguage = UtilityFunctions.getFieldFromResponse(request, "lang", "en");
+    // Where the previous page of top-level comments ended, null for the first page
+    Cursor startCursor = null;
+    String urlSafeCursor = UtilityFunctions.getFieldFromResponse(request, "cursor", "");
+    if (urlSafeCursor.length() != 0) {
+      try {
+        startCursor = Cursor.fromUrlSafe(urlSafeCursor);
+      } catch (IllegalStateException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+    }
 
-    ArrayList<UserComment> comments = new ArrayList<>();
-    populateRootComments(
-        comments, maxComments, sortOrder, sortMetric, filterMetric, filterText, commentLanguage);
-
-    Gson gson = new Gson();
+    /*
+     * The response has the form {"comments": [...], "cursor": "..."}. The cursor is
+     * passed back with the same parameters to get the next page and is omitted when
+     * there are no more top-level comments.
+     */
     response.setContentType("application/json;charset=UTF-8");
-    response.getWriter().println(gson.toJson(comments));
+    JsonWriter jsonWriter = new JsonWriter(response.getWriter());
+    jsonWriter.beginObject();
+    jsonWriter.name("comments").beginArray();
+    String nextCursor;
+    try {
+      nextCursor =
+          writeRootComments(
+              jsonWriter,
+              maxComments,
+              sortOrder,
+              sortMetric,
+              filterMetric,
+              filterText,
+              commentLanguage,
+              startCursor);
+    } catch (DatastoreException e) {
+      // A cursor that decodes but was not issued for this query is rejected by datastore
+      boolean badCursor = startCursor != null && "INVALID_ARGUMENT".equals(e.getReason());
+      if (!badCursor || response.isCommitted()) {
+        throw e;
+      }
+      response.reset();
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    jsonWriter.endArray();
+    if (nextCursor != null) {
+      jsonWriter.name("cursor").value(nextCursor);
+    }
+    jsonWriter.endObject();
+    jsonWriter.flush();
   }
 
   /*
-   * Populates comments with atmost maxComments top-level queries and all their replies.
-   * The top-level queries are sorted by sortMetric in sortOrder
+   * Writes atmost maxComments top-level queries and all their replies to jsonWriter
+   * one comment at a time, without building the whole response in memory.
+   * The top-level queries are sorted by sortMetric in sortOrder and start after
+   * startCursor if it is not null. Returns the cursor for the next page, or null if
+   * this is the last one.
    */
-  private void populateRootComments(
-      ArrayList<UserComment> comments,
+  private String writeRootComments(
+      JsonWriter jsonWriter,
       int maxComments,
       String sortOrder,
       String sortMetric,
       String filterMetric,
       String filterText,
-      String langCode) {
+      String langCode,
+      Cursor startCursor)
+      throws IOException {
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    Builder builder = Query.newEntityQueryBuilder();
-    builder = builder.setKind("Comment").setFilter(PropertyFilter.eq("rootid", 0));
+    // Each root is immediately followed by its replies
+    ArrayList<Entity> entities = new ArrayList<>();
+    int numRoots = 0;
+    Cursor cursorAfter;
+
+    if (CommentThreadDocuments.isEnabled()) {
+      // Every thread on the page is read by this single query
+      Query<Entity> query =
+          buildRootQuery(
+              Query.newEntityQueryBuilder().setKind("CommentThread"),
+              maxComments,
+              sortOrder,
+              sortMetric,
+              filterMetric,
+              filterText,
+              startCursor);
+      QueryResults<Entity> results = datastore.run(query);
+      while (results.hasNext()) {
+        entities.addAll(CommentThreadDocuments.toThread(results.next()));
+        numRoots++;
+      }
+      cursorAfter = results.getCursorAfter();
+    } else {
+      Query<Key> query =
+          buildRootQuery(
+              Query.newKeyQueryBuilder()
+                  .setKind("Comment")
+                  .setFilter(PropertyFilter.eq("rootid", 0)),
+              maxComments,
+              sortOrder,
+              sortMetric,
+              filterMetric,
+              filterText,
+              startCursor);
+      QueryResults<Key> results = datastore.run(query);
+      ArrayList<Key> rootKeys = new ArrayList<>();
+      while (results.hasNext()) {
+        rootKeys.add(results.next());
+      }
+      cursorAfter = results.getCursorAfter();
+      numRoots = rootKeys.size();
+
+      Map<Long, List<Entity>> threads = CommentThreadCache.getThreads(rootKeys);
+      for (Key rootKey : rootKeys) {
+        entities.addAll(threads.getOrDefault(rootKey.getId(), Collections.emptyList()));
+      }
+    }
+    // A page with fewer than maxComments top-level comments is the last one
+    String nextCursor = (numRoots == maxComments) ? cursorAfter.toUrlSafe() : null;
+
+    String userId = UtilityFunctions.getCurrentUserId();
+    ArrayList<Long> commentIds = new ArrayList<>();
+    for (Entity entity : entities) {
+      commentIds.add(entity.getKey().getId());
+    }
+    Map<Long, UserComment.voteStatus> votes =
+        UtilityFunctions.getVotesInDatastore(userId, commentIds);
 
+    Map<Long, VoteTotals> voteTotals = VoteCounter.getTotals(entities);
+    Map<String, String> translations = translateComments(entities, langCode);
+
+    Gson gson = new Gson();
+    for (Entity entity : entities) {
+      UserComment comment = entityToComment(entity, userId, votes, voteTotals, translations);
+      gson.toJson(comment, comment.getClass(), jsonWriter);
+    }
+    return nextCursor;
+  }
+
+  /*
+   * Finishes builder, a query for top-level comments or their thread documents, so that
+   * it returns atmost maxComments results sorted by sortMetric in sortOrder, starting
+   * after startCursor if it is not null
+   */
+  private <V> StructuredQuery<V> buildRootQuery(
+      StructuredQuery.Builder<V> builder,
+      int maxComments,
+      String sortOrder,
+      String sortMetric,
+      String filterMetric,
+      String filterText,
+      Cursor startCursor) {
     if (sortOrder.equals("desc")) {
       builder = builder.setOrderBy(StructuredQuery.OrderBy.desc(sortMetric));
     } else {
@@ -100,34 +237,41 @@ public class DataServlet extends HttpServlet {
 
     builder = builder.setLimit(maxComments);
 
-    Query<Entity> query = builder.build();
-    QueryResults<Entity> results = datastore.run(query);
-    while (results.hasNext()) {
-      Entity entity = results.next();
-      UserComment comment = entityToComment(entity, langCode);
-      comments.add(comment);
-      populateChildComments(comments, entity.getKey().getId(), langCode);
+    if (startCursor != null) {
+      builder = builder.setStartCursor(startCursor);
     }
+    return builder.build();
   }
 
-  // Populates comments with all replies of the comment with ID rootId
-  private void populateChildComments(
-      ArrayList<UserComment> comments, long rootId, String langCode) {
-    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    Builder builder = Query.newEntityQueryBuilder();
-    builder = builder.setKind("Comment").setFilter(PropertyFilter.eq("rootid", rootId));
-
-    Query<Entity> query = builder.build();
-    QueryResults<Entity> results = datastore.run(query);
-    while (results.hasNext()) {
-      Entity entity = results.next();
-      UserComment comment = entityToComment(entity, langCode);
-      comments.add(comment);
+  /*
+   * Translates the names and contents of all of the given comments into language
+   * langCode at once and returns a map from each original text to its translation.
+   * The map is empty if langCode is English, in which case no translation is needed.
+   */
+  private Map<String, String> translateComments(List<Entity> entities, String langCode) {
+    if (langCode.equals("en")) {
+      return Collections.emptyMap();
+    }
+    HashSet<String> texts = new HashSet<>();
+    for (Entity entity : entities) {
+      texts.add(entity.getString("name"));
+      texts.add(entity.getString("comment"));
     }
+    return TranslationCache.translateAll(texts, langCode);
   }
 
-  // Creates a UserComment object from the given entity
-  private UserComment entityToComment(Entity entity, String langCode) {
+  /*
+   * Creates a UserComment object from the given entity as seen by user userId, whose
+   * votes on the comments of this page are given by votes. The vote counts are taken
+   * from voteTotals and the name and content are replaced by their entries in
+   * translations, if present.
+   */
+  private UserComment entityToComment(
+      Entity entity,
+      String userId,
+      Map<Long, UserComment.voteStatus> votes,
+      Map<Long, VoteTotals> voteTotals,
+      Map<String, String> translations) {
     long id = entity.getKey().getId();
     String name = entity.getString("name");
     String email = entity.getString("email");
@@ -135,37 +279,17 @@ public class DataServlet extends HttpServlet {
     String comment = entity.getString("comment");
     long parentId = entity.getLong("parentid");
     long rootId = entity.getLong("rootid");
-    long upvotes = entity.getLong("upvotes");
-    long downvotes = upvotes - entity.getLong("score");
+    VoteTotals totals = voteTotals.get(id);
+    long upvotes = totals.upvotes();
+    long downvotes = upvotes - totals.score();
     String commenterId = entity.getString("userid");
 
-    String translatedName = name, translatedComment = comment;
-    if (!langCode.equals("en")) {
-      Translate translate = TranslateOptions.getDefaultInstance().getService();
-      Translation nameTranslation =
-          translate.translate(name, Translate.TranslateOption.targetLanguage(langCode));
-      translatedName = nameTranslation.getTranslatedText();
-
-      Translation commentTranslation =
-          translate.translate(comment, Translate.TranslateOption.targetLanguage(langCode));
-      translatedComment = commentTranslation.getTranslatedText();
-    }
+    String translatedName = translations.getOrDefault(name, name);
+    String translatedComment = translations.getOrDefault(comment, comment);
 
-    String userId = UtilityFunctions.getCurrentUserId();
     boolean isEditable = commenterId.equals(userId);
-    UserComment.voteStatus votingStatus = UserComment.voteStatus.NOTVOTED;
-
-    /*
-     * Has value:
-     * 1 if user has upvoted this comment
-     * -1 if user has downvoted this comment
-     * 0 if user has not voted for this comment
-     */
-    int voteValue = UtilityFunctions.getVoteInDatastore(userId, id);
-    if (voteValue != 0) {
-      votingStatus =
-          (voteValue == 1) ? UserComment.voteStatus.UPVOTED : UserComment.voteStatus.DOWNVOTED;
-    }
+    UserComment.voteStatus votingStatus =
+        votes.getOrDefault(id, UserComment.voteStatus.NOTVOTED);
 
     UserComment userComment =
         UserComment.create(
@@ -195,28 +319,51 @@ public class DataServlet extends HttpServlet {
     if (!userService.isUserLoggedIn()) {
       return;
     }
-    String parsedBody = CharStreams.toString(request.getReader());
-    JsonObject jsonComment = UtilityFunctions.stringToJsonObject(parsedBody);
-
-    String userComment = UtilityFunctions.getFieldFromJsonObject(jsonComment, "comment", "");
-    if (userComment.length() != 0) {
-      String userName = UtilityFunctions.getFieldFromJsonObject(jsonComment, "name", "Anonymous");
-      User currUser = userService.getCurrentUser();
-      String userEmail = currUser != null ? currUser.getEmail() : "janedoe@gmail.com";
-      String currDate = String.valueOf(System.currentTimeMillis());
-      long userDate =
-          Long.parseLong(
-              UtilityFunctions.getFieldFromJsonObject(jsonComment, "timestamp", currDate));
-      UtilityFunctions.addToDatastore(
-          userName,
-          userEmail,
-          userDate,
-          userComment,
-          /* parentId = */ 0,
-          /* rootId = */ 0,
-          /* isReply = */ false,
-          /* upvotes = */ 0,
-          /* downvotes = */ 0);
+    String idempotencyKey = IdempotencyStore.getKey(request);
+    if (!IdempotencyStore.begin(idempotencyKey, response)) {
+      return;
+    }
+    try {
+      String parsedBody = CharStreams.toString(request.getReader());
+      JsonObject jsonComment = UtilityFunctions.stringToJsonObject(parsedBody);
+
+      String userComment = UtilityFunctions.getFieldFromJsonObject(jsonComment, "comment", "");
+      if (userComment.length() != 0) {
+        String userName = UtilityFunctions.getFieldFromJsonObject(jsonComment, "name", "Anonymous");
+        User currUser = userService.getCurrentUser();
+        String userEmail = currUser != null ? currUser.getEmail() : "janedoe@gmail.com";
+        String currDate = String.valueOf(System.currentTimeMillis());
+        long userDate =
+            Long.parseLong(
+                UtilityFunctions.getFieldFromJsonObject(jsonComment, "timestamp", currDate));
+        List<Entity> newEntities =
+            UtilityFunctions.createCommentEntities(
+                userName,
+                userEmail,
+                userDate,
+                userComment,
+                /* parentId = */ 0,
+                /* rootId = */ 0,
+                /* isReply = */ false,
+                /* upvotes = */ 0,
+                /* downvotes = */ 0);
+        if (CommentWriteQueue.isEnabled()) {
+          if (!CommentWriteQueue.submit(newEntities, response)) {
+            return;
+          }
+          IdempotencyStore.complete(
+              idempotencyKey,
+              HttpServletResponse.SC_ACCEPTED,
+              CommentWriteQueue.getAcceptedBody(newEntities));
+        } else {
+          UtilityFunctions.writeCommentEntities(newEntities);
+          ContentVersion.bump();
+          IdempotencyStore.complete(idempotencyKey, HttpServletResponse.SC_OK, "");
+        }
+        PretranslationQueue.queueTranslation(userName, userComment);
+      }
+    } finally {
+      IdempotencyStore.release(idempotencyKey);
     }
   }
 }
@@ -16,12 +16,25 @@ package com.google.sps.servlets;
 
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyQuery;
 import com.google.cloud.datastore.Query;
-import com.google.common.collect.Iterators;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.Transaction;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -30,9 +43,45 @@ import javax.servlet.http.HttpServletResponse;
 @WebServlet("/delete-all")
 public class DeleteAllServlet extends HttpServlet {
 
+  // Every kind that holds comments or data derived from them, deleted in this order
+  private static final String[] purgedKinds = {
+    "Comment",
+    "DateEntry",
+    "CommentRollup",
+    "Vote",
+    "VoteShard",
+    "CommentThread",
+    "CommentLang",
+    "CommentLangShard",
+    "CommentTranslation",
+    "IdempotencyRecord"
+  };
+
+  // The largest number of keys datastore accepts in a single write
+  private static final int maxKeysPerDelete = 500;
+
+  private static final int numWorkers = 4;
+
+  // Bounds the number of chunks of keys held in memory while waiting to be deleted
+  private static final int maxChunksInFlight = 2 * numWorkers;
+
+  // How long one request keeps deleting before it saves its place and returns
+  private static final long stepBudgetMs = 30000;
+
+  // How long a step holds the purge, so a step that dies without finishing is taken over
+  private static final long leaseMs = 2 * stepBudgetMs;
+
+  private static final ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+
   /*
-   * Called when a client submits a POST request to the /delete-data URL,
-   * clears database of all comments
+   * Called when a client submits a POST request to the /delete-all URL, clears
+   * database of all comments and everything recorded about them. Each request deletes
+   * for at most stepBudgetMs and saves where it stopped in a PurgeProgress entity, so
+   * the purge survives the request deadline and can be continued from any instance:
+   * the website admin repeats the POST until the response says it is done. A POST
+   * after a finished purge starts a new one. Responds with a 409 while another request
+   * is working on the purge. The lease is released when the request returns, whether
+   * or not its step succeeded, so the next POST can continue straight away.
    */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -41,10 +90,205 @@ public class DeleteAllServlet extends HttpServlet {
     if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
       return;
     }
+    // Only one request works on the purge at a time
+    Entity progress = acquireProgress();
+    if (progress == null) {
+      response.sendError(HttpServletResponse.SC_CONFLICT);
+      return;
+    }
+
+    long leaseUntil = progress.getLong("leaseuntil");
+    try {
+      progress = purgeUntilDeadline(progress, System.currentTimeMillis() + stepBudgetMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while deleting comments", e);
+    } finally {
+      releaseLease(leaseUntil);
+      CommentThreadCache.invalidateAll();
+      ContentVersion.bump();
+    }
+    response.setContentType("application/json");
+    response.getWriter().println(toJson(progress).build().toString());
+  }
+
+  /*
+   * Called when a client submits a GET request to the /delete-all URL. Returns to the
+   * website admin whether the current or last purge is done and how many entities of
+   * each kind it has deleted so far.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    // Make sure user is logged in and they are the website admin
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      return;
+    }
+
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Entity progress = datastore.get(getProgressKey());
+    JsonObjectBuilder builder =
+        (progress == null) ? Json.createObjectBuilder().add("done", true) : toJson(progress);
+    response.setContentType("application/json");
+    response.getWriter().println(builder.build().toString());
+  }
+
+  /*
+   * Takes the lease on the purge in progress, or on a new purge if the last one is
+   * done, and returns its progress. Returns null if another request holds the lease.
+   */
+  private Entity acquireProgress() {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    long now = System.currentTimeMillis();
+    Transaction transaction = datastore.newTransaction();
+    try {
+      Entity progress = transaction.get(getProgressKey());
+      if (progress != null
+          && !progress.getBoolean("done")
+          && progress.getLong("leaseuntil") > now) {
+        return null;
+      }
+      Entity.Builder builder =
+          (progress == null || progress.getBoolean("done"))
+              ? createProgress()
+              : Entity.newBuilder(progress);
+      Entity leased = builder.set("leaseuntil", now + leaseMs).build();
+      transaction.put(leased);
+      transaction.commit();
+      return leased;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /*
+   * Gives up the lease taken by acquireProgress, identified by the time leaseUntil it
+   * ran until. Does nothing if the lease has expired and another request took it over.
+   */
+  private void releaseLease(long leaseUntil) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Transaction transaction = datastore.newTransaction();
+    try {
+      Entity progress = transaction.get(getProgressKey());
+      if (progress == null || progress.getLong("leaseuntil") != leaseUntil) {
+        return;
+      }
+      transaction.put(Entity.newBuilder(progress).set("leaseuntil", 0).build());
+      transaction.commit();
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /*
+   * Deletes the kinds left in progress, starting where it stopped, until they are all
+   * deleted or deadline passes. The keys of each kind are read a page at a time and
+   * deleted in fixed-size chunks by a small pool of workers, and the place after each
+   * page is saved once the page is deleted. Returns the saved progress.
+   */
+  private Entity purgeUntilDeadline(Entity progress, long deadline) throws InterruptedException {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    int kindIndex = (int) progress.getLong("kindindex");
+    String cursor = progress.getString("cursor");
+    while (kindIndex < purgedKinds.length && System.currentTimeMillis() < deadline) {
+      String kind = purgedKinds[kindIndex];
+      KeyQuery.Builder query =
+          Query.newKeyQueryBuilder().setKind(kind).setLimit(maxKeysPerDelete * maxChunksInFlight);
+      if (!cursor.isEmpty()) {
+        query.setStartCursor(Cursor.fromUrlSafe(cursor));
+      }
+      QueryResults<Key> results = datastore.run(query.build());
+      long numDeleted = deletePage(datastore, results);
+
+      if (numDeleted == 0) {
+        kindIndex++;
+        cursor = "";
+      } else {
+        cursor = results.getCursorAfter().toUrlSafe();
+      }
+      progress =
+          Entity.newBuilder(progress)
+              .set("kindindex", kindIndex)
+              .set("cursor", StringValue.newBuilder(cursor).setExcludeFromIndexes(true).build())
+              .set(kind, progress.getLong(kind) + numDeleted)
+              .set("done", kindIndex == purgedKinds.length)
+              .build();
+      datastore.put(progress);
+    }
+    return progress;
+  }
+
+  /*
+   * Deletes every key in results, handing them to the workers in chunks. Returns once
+   * all chunks are deleted, with the number of keys deleted.
+   */
+  private long deletePage(Datastore datastore, QueryResults<Key> results)
+      throws InterruptedException {
+    Semaphore chunksInFlight = new Semaphore(maxChunksInFlight);
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    AtomicLong numDeleted = new AtomicLong();
+    while (results.hasNext() && failure.get() == null) {
+      ArrayList<Key> chunk = new ArrayList<>();
+      while (results.hasNext() && chunk.size() < maxKeysPerDelete) {
+        chunk.add(results.next());
+      }
+      chunksInFlight.acquire();
+      workers.execute(
+          () -> {
+            try {
+              datastore.delete(chunk.toArray(new Key[0]));
+              numDeleted.addAndGet(chunk.size());
+            } catch (RuntimeException e) {
+              failure.compareAndSet(null, e);
+            } finally {
+              chunksInFlight.release();
+            }
+          });
+    }
+
+    // Wait for the remaining chunks to be deleted
+    chunksInFlight.acquire(maxChunksInFlight);
+    chunksInFlight.release(maxChunksInFlight);
+    // The page is not saved as done, so the next request deletes it again
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return numDeleted.get();
+  }
+
+  // Creates the progress of a purge that has not deleted anything yet
+  private Entity.Builder createProgress() {
+    Entity.Builder builder =
+        Entity.newBuilder(getProgressKey())
+            .set("kindindex", 0)
+            .set("cursor", StringValue.newBuilder("").setExcludeFromIndexes(true).build())
+            .set("done", false);
+    for (String kind : purgedKinds) {
+      builder.set(kind, 0);
+    }
+    return builder;
+  }
+
+  // Returns whether progress is done and how many entities of each kind it has deleted
+  private JsonObjectBuilder toJson(Entity progress) {
+    JsonObjectBuilder deleted = Json.createObjectBuilder();
+    for (String kind : purgedKinds) {
+      if (progress.contains(kind)) {
+        deleted.add(kind, progress.getLong(kind));
+      }
+    }
+    return Json.createObjectBuilder()
+        .add("done", progress.getBoolean("done"))
+        .add("deleted", deleted);
+  }
 
+  // Returns the key of the single entity recording the progress of the purge
+  private Key getProgressKey() {
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    Query<Key> query = Query.newKeyQueryBuilder().setKind("Comment").build();
-    Key[] keys = Iterators.toArray(datastore.run(query), Key.class);
-    datastore.delete(keys);
+    return datastore.newKeyFactory().setKind("PurgeProgress").newKey("delete-all");
   }
 }
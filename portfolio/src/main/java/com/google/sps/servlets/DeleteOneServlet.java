@@ -18,11 +18,25 @@ import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import com.google.gson.JsonObject;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -31,6 +45,12 @@ import javax.servlet.http.HttpServletResponse;
 @WebServlet("/delete-one")
 public class DeleteOneServlet extends HttpServlet {
 
+  // The largest number of keys datastore accepts in a single write
+  private final int maxKeysPerDelete = 500;
+
+  // The largest number of keys datastore accepts in a single lookup
+  private final int maxKeysPerLookup = 1000;
+
   /*
    * Called when a POST request is submitted to /delete-one, deletes the
    * comment that was clicked as well as all of its replies
@@ -50,11 +70,17 @@ public class DeleteOneServlet extends HttpServlet {
 
     if (commentId != 0) {
       deleteInDatastore(commentId);
+      ContentVersion.bump();
     }
   }
 
   /*
-   * Deletes comment represented by commentId from the datastore
+   * Deletes comment represented by commentId from the datastore along with all of its
+   * replies and everything recorded about them: their timestamps, votes, vote counter
+   * shards and thread document. The keys are gathered with keys-only queries and
+   * deleted in batches, and the deleted comments are taken off the rollup counts.
+   * Votes are found by their thread, so votes cast before the thread was recorded on
+   * them are only removed once /migrate-votes has run.
    */
   private void deleteInDatastore(long commentId) {
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
@@ -65,6 +91,134 @@ public class DeleteOneServlet extends HttpServlet {
     if (!commentUserId.equals(UtilityFunctions.getCurrentUserId())) {
       return;
     }
-    datastore.delete(keyFactory.newKey(commentId));
+
+    long rootId = comment.getLong("rootid");
+    Set<Long> deletedIds = getSubtreeIds(comment);
+    ArrayList<Key> keys = new ArrayList<>();
+    ArrayList<Key> timestampKeys = new ArrayList<>();
+    for (long deletedId : deletedIds) {
+      keys.add(keyFactory.newKey(deletedId));
+      timestampKeys.add(UtilityFunctions.getTimestampKey(deletedId));
+      keys.addAll(VoteCounter.getShardKeys(deletedId));
+    }
+    // Every vote in the thread is found with one query and those on deleted comments kept
+    long threadId = UtilityFunctions.getRootId(comment);
+    for (Key voteKey : getKeys("Vote", PropertyFilter.eq("rootid", threadId))) {
+      if (deletedIds.contains(UtilityFunctions.getVotedCommentId(voteKey))) {
+        keys.add(voteKey);
+      }
+    }
+    if (rootId == 0) {
+      keys.add(CommentThreadDocuments.getDocumentKey(commentId));
+    }
+
+    keys.addAll(timestampKeys);
+
+    // The timestamps say which buckets' comment counts to decrease
+    ArrayList<Entity> timestamps = new ArrayList<>();
+    for (List<Key> batch : Lists.partition(timestampKeys, maxKeysPerLookup)) {
+      datastore.get(batch).forEachRemaining(timestamps::add);
+    }
+    Set<Long> unkeyedIds = new HashSet<>(deletedIds);
+    for (Entity timestamp : timestamps) {
+      unkeyedIds.remove(timestamp.getKey().getId());
+    }
+    if (!unkeyedIds.isEmpty()) {
+      for (Entity timestamp : getLegacyTimestamps(unkeyedIds, threadId)) {
+        timestamps.add(timestamp);
+        keys.add(timestamp.getKey());
+      }
+    }
+    for (List<Key> batch : Lists.partition(keys, maxKeysPerDelete)) {
+      datastore.delete(batch.toArray(new Key[0]));
+    }
+    CommentRollups.addTimestamps(timestamps, -1);
+
+    if (rootId != 0 && CommentThreadDocuments.isEnabled()) {
+      CommentThreadDocuments.removeReplies(rootId, deletedIds);
+    }
+    CommentThreadCache.invalidateThreadOf(comment);
+  }
+
+  /*
+   * Returns the IDs of comment and all of its direct and indirect replies. For a root
+   * these are all the comments with its rootid; for a reply they are found by
+   * following parentid links within its thread.
+   */
+  private Set<Long> getSubtreeIds(Entity comment) {
+    long commentId = comment.getKey().getId();
+    long rootId = comment.getLong("rootid");
+    HashSet<Long> subtreeIds = new HashSet<>();
+    subtreeIds.add(commentId);
+    if (rootId == 0) {
+      for (Key reply : getKeys("Comment", PropertyFilter.eq("rootid", commentId))) {
+        subtreeIds.add(reply.getId());
+      }
+      return subtreeIds;
+    }
+
+    // Maps the ID of each comment in the thread to the IDs of its direct replies
+    Map<Long, List<Long>> childIds = new HashMap<>();
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<ProjectionEntity> query =
+        Query.newProjectionEntityQueryBuilder()
+            .setKind("Comment")
+            .setFilter(PropertyFilter.eq("rootid", rootId))
+            .setProjection("parentid")
+            .build();
+    QueryResults<ProjectionEntity> results = datastore.run(query);
+    while (results.hasNext()) {
+      ProjectionEntity reply = results.next();
+      childIds
+          .computeIfAbsent(reply.getLong("parentid"), parentId -> new ArrayList<>())
+          .add(reply.getKey().getId());
+    }
+
+    ArrayDeque<Long> toVisit = new ArrayDeque<>();
+    toVisit.add(commentId);
+    while (!toVisit.isEmpty()) {
+      for (long childId : childIds.getOrDefault(toVisit.poll(), Collections.emptyList())) {
+        if (subtreeIds.add(childId)) {
+          toVisit.add(childId);
+        }
+      }
+    }
+    return subtreeIds;
+  }
+
+  /*
+   * Returns the timestamps of the comments with IDs in commentIds, all in the thread
+   * rooted at threadId, that were written before DateEntry was keyed by comment id and
+   * have not been rekeyed by /migrate-dates yet. Replies are found with one query on
+   * their thread; the root records a rootid of 0, so it needs a query of its own.
+   */
+  private List<Entity> getLegacyTimestamps(Set<Long> commentIds, long threadId) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    ArrayList<PropertyFilter> filters = new ArrayList<>();
+    filters.add(PropertyFilter.eq("rootid", threadId));
+    if (commentIds.contains(threadId)) {
+      filters.add(PropertyFilter.eq("commentid", threadId));
+    }
+    ArrayList<Entity> legacyTimestamps = new ArrayList<>();
+    for (PropertyFilter filter : filters) {
+      Query<Entity> query =
+          Query.newEntityQueryBuilder().setKind("DateEntry").setFilter(filter).build();
+      datastore
+          .run(query)
+          .forEachRemaining(
+              timestamp -> {
+                if (commentIds.contains(timestamp.getLong("commentid"))) {
+                  legacyTimestamps.add(timestamp);
+                }
+              });
+    }
+    return legacyTimestamps;
+  }
+
+  // Returns the keys of all entities of the given kind that match filter
+  private List<Key> getKeys(String kind, PropertyFilter filter) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Key> query = Query.newKeyQueryBuilder().setKind(kind).setFilter(filter).build();
+    return Lists.newArrayList(datastore.run(query));
   }
 }
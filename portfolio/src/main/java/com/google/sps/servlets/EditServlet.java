@@ -55,6 +55,7 @@ public class EditServlet extends HttpServlet {
 
     if (newComment.length() != 0) {
       editInDatastore(commentId, newComment, time);
+      ContentVersion.bump();
     }
   }
 
@@ -74,6 +75,12 @@ public class EditServlet extends HttpServlet {
     Entity updatedComment =
         Entity.newBuilder(comment).set("comment", newComment).set("time", time).build();
     datastore.update(updatedComment);
+    if (CommentThreadDocuments.isEnabled()) {
+      CommentThreadDocuments.updateComment(updatedComment);
+    }
+    CommentThreadCache.invalidateThreadOf(comment);
+
+    PretranslationQueue.queueTranslation(comment.getString("name"), newComment);
 
     // Update timestamp of this comment in datastore
     UtilityFunctions.editTimestampInDatastore(commentId, time);
@@ -0,0 +1,106 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.BooleanValue;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.NullValue;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.Value;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.util.Map;
+
+/*
+ * Converts comment data entities to and from single lines of JSON, as used by the
+ * NDJSON export and import. Each line holds the kind, the id or name of the key and
+ * an object of properties. Only the string, integer, boolean and null properties that
+ * the comment kinds use are supported.
+ */
+public class EntityLines {
+
+  // Returns entity as a single line of JSON, without the trailing newline
+  public static String toLine(Entity entity) {
+    JsonObject properties = new JsonObject();
+    for (Map.Entry<String, Value<?>> property : entity.getProperties().entrySet()) {
+      properties.add(property.getKey(), toJson(property.getValue()));
+    }
+
+    JsonObject line = new JsonObject();
+    Key key = entity.getKey();
+    line.addProperty("kind", key.getKind());
+    if (key.hasId()) {
+      line.addProperty("id", key.getId());
+    } else {
+      line.addProperty("name", key.getName());
+    }
+    line.add("properties", properties);
+    return line.toString();
+  }
+
+  // Returns the entity described by a line produced by toLine
+  public static Entity fromLine(String line) {
+    JsonObject json = UtilityFunctions.stringToJsonObject(line);
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(json.get("kind").getAsString());
+    Key key =
+        json.has("id")
+            ? keyFactory.newKey(json.get("id").getAsLong())
+            : keyFactory.newKey(json.get("name").getAsString());
+
+    Entity.Builder builder = Entity.newBuilder(key);
+    for (Map.Entry<String, JsonElement> property :
+        json.getAsJsonObject("properties").entrySet()) {
+      builder.set(property.getKey(), fromJson(property.getValue()));
+    }
+    return builder.build();
+  }
+
+  private static JsonElement toJson(Value<?> value) {
+    switch (value.getType()) {
+      case STRING:
+        return new JsonPrimitive((String) value.get());
+      case LONG:
+        return new JsonPrimitive((Long) value.get());
+      case BOOLEAN:
+        return new JsonPrimitive((Boolean) value.get());
+      case NULL:
+        return JsonNull.INSTANCE;
+      default:
+        throw new IllegalArgumentException("Cannot export property of type " + value.getType());
+    }
+  }
+
+  private static Value<?> fromJson(JsonElement element) {
+    if (element.isJsonNull()) {
+      return NullValue.of();
+    }
+    JsonPrimitive primitive = element.getAsJsonPrimitive();
+    if (primitive.isBoolean()) {
+      return BooleanValue.of(primitive.getAsBoolean());
+    } else if (primitive.isNumber()) {
+      return LongValue.of(primitive.getAsLong());
+    } else {
+      return StringValue.of(primitive.getAsString());
+    }
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet("/export")
+public class ExportServlet extends HttpServlet {
+
+  /*
+   * Every kind that makes up the comment corpus, exported in this order. VoteShard is
+   * included because sharded comments hold only a cached copy of their totals. The
+   * derived kinds are not exported: CommentRollup is rebuilt from DateEntry by the
+   * import, and CommentThread documents are rebuilt by /migrate-threads.
+   */
+  private static final String[] exportedKinds = {
+    "Comment", "DateEntry", "Vote", "VoteShard", "CommentLang", "CommentLangShard"
+  };
+
+  private static final int entitiesPerPage = 500;
+
+  /*
+   * Called when the website admin submits a GET request to /export. Streams every
+   * entity of the exported kinds as newline-delimited JSON, one entity per line.
+   * Each kind is read a page at a time and every page is flushed before the next is
+   * fetched, so memory use does not grow with the number of comments.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    // Make sure user is logged in and they are the website admin
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      return;
+    }
+
+    response.setContentType("application/x-ndjson");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter writer = response.getWriter();
+    for (String kind : exportedKinds) {
+      exportKind(kind, writer);
+    }
+  }
+
+  // Writes one line per entity of the given kind, fetching them page by page
+  private void exportKind(String kind, PrintWriter writer) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Cursor pageCursor = null;
+    while (true) {
+      EntityQuery.Builder queryBuilder =
+          Query.newEntityQueryBuilder().setKind(kind).setLimit(entitiesPerPage);
+      if (pageCursor != null) {
+        queryBuilder.setStartCursor(pageCursor);
+      }
+      QueryResults<Entity> results = datastore.run(queryBuilder.build());
+
+      int numInPage = 0;
+      while (results.hasNext()) {
+        writer.println(EntityLines.toLine(results.next()));
+        numInPage++;
+      }
+      writer.flush();
+      if (numInPage < entitiesPerPage) {
+        return;
+      }
+      pageCursor = results.getCursorAfter();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Translates comment text without contacting the Translation API by prefixing it
+ * with the target language code. Used to exercise and benchmark the translation
+ * path offline. Selected by setting the 'translator' system property to 'fake'.
+ */
+public class FakeCommentTranslator implements CommentTranslator {
+
+  private final AtomicLong numCalls = new AtomicLong();
+  private final AtomicLong numTexts = new AtomicLong();
+
+  @Override
+  public List<String> translate(List<String> texts, String langCode) {
+    numCalls.incrementAndGet();
+    numTexts.addAndGet(texts.size());
+    ArrayList<String> translatedTexts = new ArrayList<>();
+    for (String text : texts) {
+      translatedTexts.add("[" + langCode + "] " + text);
+    }
+    return translatedTexts;
+  }
+
+  // Returns the number of times translate has been called
+  public long getNumCalls() {
+    return numCalls.get();
+  }
+
+  // Returns the total number of texts passed to translate
+  public long getNumTexts() {
+    return numTexts.get();
+  }
+}
@@ -0,0 +1,54 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet("/flush-counters")
+public class FlushCountersServlet extends HttpServlet {
+
+  /*
+   * Called when a GET request is submitted to /flush-counters, by cron or the website
+   * admin. Writes the vote count changes and language request counts buffered on the
+   * instance that serves it, so they are not left waiting for the next request there.
+   * Returns whether anything of each was written.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    // App Engine strips this header from requests that do not come from cron
+    boolean isCron = "true".equals(request.getHeader("X-Appengine-Cron"));
+    // Make sure the request comes from cron or the website admin
+    if (!isCron && (!userService.isUserLoggedIn() || !userService.isUserAdmin())) {
+      return;
+    }
+
+    boolean votesFlushed = VoteBuffer.flushNow();
+    boolean langsFlushed = LangCounter.flushNow();
+
+    JsonObjectBuilder builder =
+        Json.createObjectBuilder().add("votes", votesFlushed).add("langs", langsFlushed);
+    response.setContentType("application/json");
+    response.getWriter().println(builder.build().toString());
+  }
+}
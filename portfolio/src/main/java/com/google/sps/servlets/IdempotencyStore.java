@@ -0,0 +1,228 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/*
+ * Remembers the response to each write that carried an Idempotency-Key header so
+ * that a client retrying the same write is sent the original response instead of
+ * the write being repeated. Responses are kept for a short time in memory and in
+ * IdempotencyRecord entities in datastore, so a retry that reaches another instance
+ * is recognised too. Keys are scoped to the user and the URL they were sent to.
+ *
+ * A write reserves its key by transactionally creating a pending record before it is
+ * carried out, so a retry sent while it is still running is refused on every instance.
+ * The record is filled in with the response once the write completes, or deleted if
+ * it fails so that the client can try again.
+ */
+public class IdempotencyStore {
+
+  public static final String headerName = "Idempotency-Key";
+
+  // How long a response is replayed for after the write that produced it
+  private static final long ttlMs = TimeUnit.MINUTES.toMillis(10);
+
+  // How long a reservation holds a key, longer than any request is allowed to run
+  private static final long pendingMs = TimeUnit.MINUTES.toMillis(1);
+
+  private static final int maxCachedResponses = 10000;
+
+  // The most expired records deleted by one sweep
+  private static final int maxKeysPerSweep = 500;
+
+  private static final Cache<String, StoredResponse> responses =
+      CacheBuilder.newBuilder()
+          .maximumSize(maxCachedResponses)
+          .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+          .build();
+
+  // Keys of writes being handled by this instance that have not completed yet
+  private static final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+  private static final AtomicLong lastSweepMs = new AtomicLong(System.currentTimeMillis());
+
+  /*
+   * Returns the key identifying the write in request, or null if the client did not
+   * send an idempotency key
+   */
+  public static String getKey(HttpServletRequest request) {
+    String clientKey = request.getHeader(headerName);
+    if (clientKey == null || clientKey.isEmpty()) {
+      return null;
+    }
+    String scopedKey =
+        UtilityFunctions.getCurrentUserId() + "\n" + request.getServletPath() + "\n" + clientKey;
+    return Hashing.sha256().hashString(scopedKey, StandardCharsets.UTF_8).toString();
+  }
+
+  /*
+   * Called before a write identified by key is carried out. Returns true if the write
+   * should go ahead, in which case release must be called once it is done. If the
+   * write has already completed, sends its original response and returns false. If
+   * it is still being carried out by any instance, sends a 409 and returns false.
+   * Writes without a key always go ahead.
+   */
+  public static boolean begin(String key, HttpServletResponse response) throws IOException {
+    if (key == null) {
+      return true;
+    }
+    StoredResponse stored = responses.getIfPresent(key);
+    if (stored != null) {
+      replay(stored, response);
+      return false;
+    }
+    if (!inFlight.add(key)) {
+      response.sendError(HttpServletResponse.SC_CONFLICT);
+      return false;
+    }
+
+    Entity record;
+    try {
+      record = reserve(key);
+    } catch (DatastoreException e) {
+      // Another instance reserved the same key at the same time
+      inFlight.remove(key);
+      response.sendError(HttpServletResponse.SC_CONFLICT);
+      return false;
+    }
+    if (record == null) {
+      return true;
+    }
+    inFlight.remove(key);
+    if (record.getBoolean("pending")) {
+      response.sendError(HttpServletResponse.SC_CONFLICT);
+      return false;
+    }
+    stored = StoredResponse.create((int) record.getLong("status"), record.getString("body"));
+    responses.put(key, stored);
+    replay(stored, response);
+    return false;
+  }
+
+  /*
+   * Creates a pending record for key in a transaction, unless an unexpired record
+   * already exists. Returns null if the key was reserved, or the existing record.
+   */
+  private static Entity reserve(String key) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    long now = System.currentTimeMillis();
+    Transaction transaction = datastore.newTransaction();
+    try {
+      Entity record = transaction.get(getRecordKey(key));
+      if (record != null && record.getLong("expires") > now) {
+        return record;
+      }
+      transaction.put(
+          Entity.newBuilder(getRecordKey(key))
+              .set("pending", true)
+              .set("expires", now + pendingMs)
+              .build());
+      transaction.commit();
+      return null;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /*
+   * Records that the write identified by key completed with the given status and body,
+   * so that retries of it are sent the same. Does nothing if key is null.
+   */
+  public static void complete(String key, int status, String body) {
+    if (key == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Entity record =
+        Entity.newBuilder(getRecordKey(key))
+            .set("pending", false)
+            .set("status", status)
+            .set("body", StringValue.newBuilder(body).setExcludeFromIndexes(true).build())
+            .set("expires", now + ttlMs)
+            .build();
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    datastore.put(record);
+    responses.put(key, StoredResponse.create(status, body));
+    inFlight.remove(key);
+    sweepIfDue(datastore, now);
+  }
+
+  /*
+   * Called once a write that begin let through is over, whether or not it completed.
+   * If it did not complete, its reservation is dropped so that it can be retried.
+   * Does nothing if key is null.
+   */
+  public static void release(String key) {
+    // complete has already taken the key out of inFlight
+    if (key != null && inFlight.remove(key)) {
+      Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+      datastore.delete(getRecordKey(key));
+    }
+  }
+
+  private static void replay(StoredResponse stored, HttpServletResponse response)
+      throws IOException {
+    response.setStatus(stored.status());
+    if (!stored.body().isEmpty()) {
+      response.setContentType("application/json");
+      response.getWriter().println(stored.body());
+    }
+  }
+
+  // Deletes a batch of expired records, at most once per TTL on each instance
+  private static void sweepIfDue(Datastore datastore, long now) {
+    long lastSweep = lastSweepMs.get();
+    if (now - lastSweep < ttlMs || !lastSweepMs.compareAndSet(lastSweep, now)) {
+      return;
+    }
+    Query<Key> query =
+        Query.newKeyQueryBuilder()
+            .setKind("IdempotencyRecord")
+            .setFilter(PropertyFilter.lt("expires", now))
+            .setLimit(maxKeysPerSweep)
+            .build();
+    datastore.delete(Iterators.toArray(datastore.run(query), Key.class));
+  }
+
+  private static Key getRecordKey(String key) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("IdempotencyRecord");
+    return keyFactory.newKey(key);
+  }
+}
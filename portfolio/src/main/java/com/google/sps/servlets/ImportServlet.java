@@ -0,0 +1,162 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet("/import")
+public class ImportServlet extends HttpServlet {
+
+  // The largest number of entities datastore accepts in a single write
+  private static final int maxEntitiesPerWrite = 500;
+
+  private static final int numWorkers = 4;
+
+  // Bounds the number of chunks of entities held in memory while waiting to be written
+  private static final int maxChunksInFlight = 2 * numWorkers;
+
+  private static final ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+
+  private static final AtomicBoolean isRunning = new AtomicBoolean();
+
+  /*
+   * Called when the website admin submits a POST request to /import with a body in
+   * the format produced by /export. Lines are parsed as they arrive and written in
+   * fixed-size chunks by a small pool of workers, so memory use does not grow with
+   * the size of the upload. The comment count rollups are rebuilt afterwards in the
+   * background, and /stats reports when that is done. Returns
+   * the number of entities written and the throughput in entities per second.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    // Make sure user is logged in and they are the website admin
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      return;
+    }
+    // Only one import runs at a time
+    if (!isRunning.compareAndSet(false, true)) {
+      response.sendError(HttpServletResponse.SC_CONFLICT);
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    AtomicLong numImported = new AtomicLong();
+    try {
+      importLines(request.getReader(), numImported);
+      // Imported timestamps were not counted as they were written
+      CommentRollups.startRebuild();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while importing comments", e);
+    } finally {
+      CommentThreadCache.invalidateAll();
+      ContentVersion.bump();
+      isRunning.set(false);
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    JsonObjectBuilder builder =
+        Json.createObjectBuilder()
+            .add("imported", numImported.get())
+            .add("seconds", seconds)
+            .add("entitiespersecond", seconds > 0 ? numImported.get() / seconds : 0);
+    response.setContentType("application/json");
+    response.getWriter().println(builder.build().toString());
+  }
+
+  /*
+   * Reads entities from reader one line at a time and hands them to the workers in
+   * chunks. Returns once every chunk is written, rethrowing the first failure.
+   */
+  private void importLines(BufferedReader reader, AtomicLong numImported)
+      throws IOException, InterruptedException {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Semaphore chunksInFlight = new Semaphore(maxChunksInFlight);
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    String line = reader.readLine();
+    while (line != null && failure.get() == null) {
+      ArrayList<Entity> chunk = new ArrayList<>();
+      while (line != null && chunk.size() < maxEntitiesPerWrite) {
+        if (!line.trim().isEmpty()) {
+          chunk.add(EntityLines.fromLine(line));
+        }
+        line = reader.readLine();
+      }
+      if (chunk.isEmpty()) {
+        break;
+      }
+      chunksInFlight.acquire();
+      workers.execute(
+          () -> {
+            try {
+              reserveIds(datastore, chunk);
+              datastore.put(chunk.toArray(new Entity[0]));
+              numImported.addAndGet(chunk.size());
+            } catch (RuntimeException e) {
+              failure.compareAndSet(null, e);
+            } finally {
+              chunksInFlight.release();
+            }
+          });
+    }
+
+    // Wait for the remaining chunks to be written
+    chunksInFlight.acquire(maxChunksInFlight);
+    chunksInFlight.release(maxChunksInFlight);
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  /*
+   * Reserves the numeric IDs of the keys of entities, which were allocated by the
+   * datastore they were exported from, so that KeyAllocator never hands them out for
+   * new entities here
+   */
+  private static void reserveIds(Datastore datastore, List<Entity> entities) {
+    ArrayList<Key> keys = new ArrayList<>();
+    for (Entity entity : entities) {
+      if (entity.getKey().hasId()) {
+        keys.add(entity.getKey());
+      }
+    }
+    if (!keys.isEmpty()) {
+      datastore.reserveIds(keys.toArray(new Key[0]));
+    }
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Hands out complete keys for new entities from a pool of IDs that datastore has
+ * allocated in bulk, so that an entity's key is known before it is written and
+ * several related entities can be written in one call
+ */
+public class KeyAllocator {
+
+  // The number of IDs allocated at once whenever the pool of a kind runs out
+  private static final int numKeysPerAllocation = 50;
+
+  private static final ConcurrentHashMap<String, Queue<Key>> pools = new ConcurrentHashMap<>();
+
+  // Returns an unused key of the given kind with a datastore-allocated ID
+  public static Key newKey(String kind) {
+    Queue<Key> pool = pools.computeIfAbsent(kind, k -> new ConcurrentLinkedQueue<>());
+    Key key = pool.poll();
+    while (key == null) {
+      refill(kind, pool);
+      key = pool.poll();
+    }
+    return key;
+  }
+
+  // Allocates a new batch of IDs of the given kind into pool unless it already has some
+  private static synchronized void refill(String kind, Queue<Key> pool) {
+    if (!pool.isEmpty()) {
+      return;
+    }
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(kind);
+    IncompleteKey[] keys = new IncompleteKey[numKeysPerAllocation];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = keyFactory.newKey();
+    }
+    pool.addAll(datastore.allocateId(keys));
+  }
+}
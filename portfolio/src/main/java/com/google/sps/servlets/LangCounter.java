@@ -0,0 +1,360 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Counts how many times comments have been requested in each language. Requests are
+ * added to in-memory counters and written in merged batches, in the same way as
+ * VoteBuffer, to one randomly chosen CommentLangShard of each language, so that busy
+ * languages do not contend on a single entity.
+ *
+ * The CommentLang entity of a language is keyed by its code and holds a copy of the
+ * sum of its shards, refreshed after every flush, which is what readers sort by.
+ * Counts that fail to be written are kept for the next flush, and whatever is still
+ * pending is written by /flush-counters and when the instance shuts down.
+ */
+public class LangCounter {
+
+  private static final int numShards = 10;
+
+  // The number of times a flush is attempted when its transaction conflicts
+  private static final int maxAttempts = 5;
+
+  private static final long flushIntervalMs = 250;
+
+  private static final int maxPendingRequests = 100;
+
+  // The most languages whose shards are updated in one transaction
+  private static final int maxLangsPerTransaction = 25;
+
+  // The largest number of keys datastore accepts in a single lookup
+  private static final int maxKeysPerLookup = 1000;
+
+  // The largest number of entities datastore accepts in a single write
+  private static final int maxEntitiesPerWrite = 500;
+
+  /*
+   * Recording a request holds the read lock, so many requests can be recorded at once,
+   * while taking the pending counts for a flush holds the write lock
+   */
+  private static final ReadWriteLock pendingLock = new ReentrantReadWriteLock();
+  private static final ReentrantLock flushLock = new ReentrantLock();
+
+  // Replaced by every flush; volatile so that readers outside the lock see the new map
+  private static volatile ConcurrentHashMap<String, LongAdder> pending =
+      new ConcurrentHashMap<>();
+  private static final AtomicInteger numPending = new AtomicInteger();
+  // When the oldest pending request was recorded, or 0 if there are none
+  private static final AtomicLong oldestPendingTime = new AtomicLong();
+
+  private static final Logger logger = Logger.getLogger(LangCounter.class.getName());
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(LangCounter::flushNow));
+  }
+
+  // Records that comments were requested in language langCode once more
+  public static void record(String langCode) {
+    addToPending(langCode, 1);
+  }
+
+  /*
+   * Writes the pending counts if they are due and no other request is already writing
+   * them. Returns whether anything was written.
+   */
+  public static boolean flushIfDue() {
+    long oldest = oldestPendingTime.get();
+    boolean isDue =
+        numPending.get() >= maxPendingRequests
+            || (oldest != 0 && System.currentTimeMillis() - oldest >= flushIntervalMs);
+    if (!isDue || !flushLock.tryLock()) {
+      return false;
+    }
+    try {
+      return flush();
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /*
+   * Writes every pending count now, waiting for a flush already in progress to finish
+   * first. Returns whether anything was written.
+   */
+  public static boolean flushNow() {
+    flushLock.lock();
+    try {
+      return flush();
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /*
+   * Returns the number of requests in each language, keyed by language code. The
+   * stored counts are merged with the requests this instance has not written yet.
+   */
+  public static Map<String, Long> getCounts() {
+    Map<String, Long> counts = new HashMap<>();
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind("CommentLang").build();
+    QueryResults<Entity> results = datastore.run(query);
+    while (results.hasNext()) {
+      Entity lang = results.next();
+      // Entities written before they were keyed by language code are counted as well
+      counts.merge(lang.getString("lang"), lang.getLong("comments"), Long::sum);
+    }
+    pendingLock.readLock().lock();
+    try {
+      for (Map.Entry<String, LongAdder> entry : pending.entrySet()) {
+        counts.merge(entry.getKey(), entry.getValue().sum(), Long::sum);
+      }
+    } finally {
+      pendingLock.readLock().unlock();
+    }
+    return counts;
+  }
+
+  /*
+   * Moves the count of every CommentLang entity not yet keyed by its language code
+   * into the first shard of its language and deletes it. Returns the number of
+   * entities moved. Safe to run more than once.
+   */
+  public static long migrate() {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind("CommentLang").build();
+    QueryResults<Entity> results = datastore.run(query);
+
+    long numMoved = 0;
+    Set<String> movedLangs = new HashSet<>();
+    while (results.hasNext()) {
+      Entity legacyLang = results.next();
+      if (legacyLang.getKey().hasName()) {
+        continue;
+      }
+      String langCode = legacyLang.getString("lang");
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Entity currentLang = transaction.get(legacyLang.getKey());
+        // Skip entities that an earlier run already moved
+        if (currentLang != null) {
+          Key shardKey = getShardKey(langCode, 0);
+          Entity shard = transaction.get(shardKey);
+          long comments = (shard == null) ? 0 : shard.getLong("comments");
+          transaction.put(
+              createShard(shardKey, langCode, comments + currentLang.getLong("comments")));
+          transaction.delete(legacyLang.getKey());
+          transaction.commit();
+          numMoved++;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+      movedLangs.add(langCode);
+    }
+    refreshTotals(movedLangs);
+    return numMoved;
+  }
+
+  /*
+   * Writes every pending count. The counts are not covered by ContentVersion, so
+   * writing them leaves the ETags of other responses valid. A batch that can not be
+   * written is logged and put back, together with all later batches, to be retried by
+   * the next flush. Must be called while holding flushLock.
+   */
+  private static boolean flush() {
+    ConcurrentHashMap<String, LongAdder> toFlush;
+    pendingLock.writeLock().lock();
+    try {
+      toFlush = pending;
+      pending = new ConcurrentHashMap<>();
+      oldestPendingTime.set(0);
+      numPending.set(0);
+    } finally {
+      pendingLock.writeLock().unlock();
+    }
+    if (toFlush.isEmpty()) {
+      return false;
+    }
+
+    Map<String, Long> deltas = new HashMap<>();
+    for (Map.Entry<String, LongAdder> entry : toFlush.entrySet()) {
+      deltas.put(entry.getKey(), entry.getValue().sum());
+    }
+
+    List<List<String>> batches =
+        Lists.partition(new ArrayList<>(deltas.keySet()), maxLangsPerTransaction);
+    ArrayList<String> written = new ArrayList<>();
+    for (int i = 0; i < batches.size(); i++) {
+      try {
+        addToShards(batches.get(i), deltas);
+        written.addAll(batches.get(i));
+      } catch (RuntimeException e) {
+        int numUnwritten = 0;
+        for (List<String> unwritten : batches.subList(i, batches.size())) {
+          for (String langCode : unwritten) {
+            addToPending(langCode, deltas.get(langCode));
+            numUnwritten++;
+          }
+        }
+        logger.log(
+            Level.WARNING,
+            "Could not write request counts of " + numUnwritten + " languages, requeued them",
+            e);
+        break;
+      }
+    }
+    if (written.isEmpty()) {
+      return false;
+    }
+    try {
+      refreshTotals(written);
+    } catch (RuntimeException e) {
+      // The shards are written; the totals catch up on the next flush of these languages
+      logger.log(Level.WARNING, "Could not refresh language totals", e);
+    }
+    return true;
+  }
+
+  /*
+   * Adds the delta of each of langs to one randomly chosen shard of that language, in
+   * a single transaction that is retried on other shards when it conflicts
+   */
+  private static void addToShards(List<String> langs, Map<String, Long> deltas) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    for (int attempt = 1; ; attempt++) {
+      Key[] shardKeys = new Key[langs.size()];
+      for (int i = 0; i < shardKeys.length; i++) {
+        shardKeys[i] =
+            getShardKey(langs.get(i), ThreadLocalRandom.current().nextInt(numShards));
+      }
+
+      Transaction transaction = datastore.newTransaction();
+      try {
+        List<Entity> shards = transaction.fetch(shardKeys);
+        for (int i = 0; i < shardKeys.length; i++) {
+          Entity shard = shards.get(i);
+          long comments = (shard == null) ? 0 : shard.getLong("comments");
+          transaction.put(
+              createShard(shardKeys[i], langs.get(i), comments + deltas.get(langs.get(i))));
+        }
+        transaction.commit();
+        return;
+      } catch (DatastoreException e) {
+        if (attempt == maxAttempts) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /*
+   * Sets the count of each of langs' CommentLang entity to the sum of its shards, read
+   * with one batched lookup. A concurrent refresh from another instance may briefly
+   * write an older sum, which the next flush of that language corrects.
+   */
+  private static void refreshTotals(Collection<String> langs) {
+    if (langs.isEmpty()) {
+      return;
+    }
+    ArrayList<Key> shardKeys = new ArrayList<>();
+    Map<String, Long> totals = new HashMap<>();
+    for (String langCode : langs) {
+      totals.put(langCode, 0L);
+      for (int i = 0; i < numShards; i++) {
+        shardKeys.add(getShardKey(langCode, i));
+      }
+    }
+
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    for (List<Key> batch : Lists.partition(shardKeys, maxKeysPerLookup)) {
+      Iterator<Entity> shards = datastore.get(batch);
+      while (shards.hasNext()) {
+        Entity shard = shards.next();
+        totals.merge(shard.getString("lang"), shard.getLong("comments"), Long::sum);
+      }
+    }
+
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("CommentLang");
+    ArrayList<Entity> langEntities = new ArrayList<>();
+    for (Map.Entry<String, Long> total : totals.entrySet()) {
+      langEntities.add(
+          Entity.newBuilder(keyFactory.newKey(total.getKey()))
+              .set("lang", total.getKey())
+              .set("comments", total.getValue())
+              .build());
+    }
+    for (List<Entity> batch : Lists.partition(langEntities, maxEntitiesPerWrite)) {
+      datastore.put(batch.toArray(new Entity[0]));
+    }
+  }
+
+  private static void addToPending(String langCode, long delta) {
+    pendingLock.readLock().lock();
+    try {
+      pending.computeIfAbsent(langCode, code -> new LongAdder()).add(delta);
+      oldestPendingTime.compareAndSet(0, System.currentTimeMillis());
+      numPending.incrementAndGet();
+    } finally {
+      pendingLock.readLock().unlock();
+    }
+  }
+
+  private static Entity createShard(Key shardKey, String langCode, long comments) {
+    return Entity.newBuilder(shardKey).set("lang", langCode).set("comments", comments).build();
+  }
+
+  // Returns the key of shard number 'shard' of the count of language langCode
+  private static Key getShardKey(String langCode, int shard) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("CommentLangShard");
+    return keyFactory.newKey(langCode + "-" + shard);
+  }
+}
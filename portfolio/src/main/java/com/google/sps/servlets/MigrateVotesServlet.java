@@ -0,0 +1,50 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet("/migrate-votes")
+public class MigrateVotesServlet extends HttpServlet {
+
+  /*
+   * Called when a POST request is submitted to /migrate-votes. Rekeys every
+   * vote written before votes were keyed by user and comment and records the thread
+   * root on votes written before it was stored. Returns the number of votes fixed.
+   * Should be run once after deploying.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    // Make sure user is logged in and they are the website admin
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      return;
+    }
+
+    long numRekeyed = UtilityFunctions.rekeyVotesInDatastore();
+
+    JsonObjectBuilder builder = Json.createObjectBuilder().add("rekeyed", numRekeyed);
+    response.setContentType("application/json");
+    response.getWriter().println(builder.build().toString());
+  }
+}
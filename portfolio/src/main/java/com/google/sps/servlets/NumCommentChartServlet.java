@@ -14,17 +14,14 @@
 
 package com.google.sps.servlets;
 
-import com.google.cloud.datastore.Datastore;
-import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.Query;
-import com.google.cloud.datastore.QueryResults;
 import com.google.gson.Gson;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Locale;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -35,53 +32,55 @@ public class NumCommentChartServlet extends HttpServlet {
 
   /*
    * Called when a client submits a POST request to the /numcomment-chart URL
-   * Prepares data about the number of comments each day and submits
-   * it to the client for rendering
+   * Prepares data about the number of comments in each bucket of time and submits
+   * it to the client for rendering. The optional parameters are 'from' and 'to',
+   * the first and last dates to include, 'bucket', one of hour, day (the default),
+   * week or month, and 'tz', the time zone the dates and buckets are in (UTC by
+   * default). Reads only the precomputed rollups that cover the range.
    */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    ZonedDateTime rangeStart;
+    ZonedDateTime rangeEnd;
+    RollupBucket bucket;
+    ZoneId zone;
+    try {
+      zone = ZoneId.of(UtilityFunctions.getFieldFromResponse(request, "tz", "UTC"));
+      bucket =
+          RollupBucket.valueOf(
+              UtilityFunctions.getFieldFromResponse(request, "bucket", "day")
+                  .toUpperCase(Locale.ROOT));
+      // Both bounds are dates in the format 2020-06-30 and may be left out
+      String from = UtilityFunctions.getFieldFromResponse(request, "from", "");
+      String to = UtilityFunctions.getFieldFromResponse(request, "to", "");
+      rangeStart = from.isEmpty() ? null : LocalDate.parse(from).atStartOfDay(zone);
+      rangeEnd = to.isEmpty() ? null : LocalDate.parse(to).plusDays(1).atStartOfDay(zone);
+    } catch (DateTimeException | IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
 
-    /*
-     * This data structure maps a date string in the format (06-31-2020) to a DayComments object
-     * with 2 attributes - the number of root comments on this day, and the number of replies
-     * on this day
-     */
-    HashMap<String, DayComments> numCommentsOnDay = new HashMap<>();
-
-    DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-
-    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    Query<Entity> query = Query.newEntityQueryBuilder().setKind("DateEntry").build();
-    QueryResults<Entity> results = datastore.run(query);
-
-    while (results.hasNext()) {
-      Entity comment = results.next();
-
-      long dateTime = comment.getLong("time");
-      Date date = new Date(dateTime);
-      String dateString = dateFormat.format(date);
-
-      DayComments prevEntry;
-      if (numCommentsOnDay.containsKey(dateString)) {
-        prevEntry = numCommentsOnDay.get(dateString);
-      } else {
-        prevEntry = DayComments.create(0, 0);
-      }
-
-      DayComments thisDayComments;
-      long rootId = comment.getLong("rootid");
-      if (rootId == 0) {
-        // If this comment is a root comment, increase the number of root comments today by one
-        thisDayComments = DayComments.create(prevEntry.rootComments() + 1, prevEntry.replies());
-      } else {
-        // Otherwise, increase the number of replies today by one
-        thisDayComments = DayComments.create(prevEntry.rootComments(), prevEntry.replies() + 1);
-      }
-      numCommentsOnDay.put(dateString, thisDayComments);
+    // A client holding the current version is answered before the chart is looked up
+    if (ContentVersion.isNotModified(request, response, "", ContentVersion.get())) {
+      return;
     }
+    CachedChart chart =
+        ChartCache.get(
+            request,
+            () -> {
+              /*
+               * This data structure maps the label of a bucket, such as 2020-06-30 for a day,
+               * to a DayComments object with 2 attributes - the number of root comments in
+               * this bucket, and the number of replies in this bucket
+               */
+              Map<String, DayComments> numCommentsInBucket =
+                  CommentRollups.getRange(rangeStart, rangeEnd, bucket, zone);
+              return new Gson().toJson(numCommentsInBucket);
+            });
+    // A chart served while it is recomputed may predate the current version
+    ContentVersion.setETag(request, response, "", chart.version());
 
-    Gson gson = new Gson();
     response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(numCommentsOnDay));
+    response.getWriter().println(chart.json());
   }
 }
@@ -0,0 +1,89 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Translates newly submitted and edited comments in the background into the languages
+ * that comments are most often requested in, so that reading them in those languages
+ * finds the translations already in TranslationCache.
+ */
+public class PretranslationQueue {
+
+  // The number of most requested languages that comments are translated into
+  private static final int numPopularLangs = 3;
+
+  private static final int numThreads = 2;
+
+  // Translations beyond this many waiting jobs are dropped and done on first read instead
+  private static final int maxQueuedJobs = 100;
+
+  private static final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(
+          numThreads,
+          numThreads,
+          0,
+          TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(maxQueuedJobs),
+          new ThreadPoolExecutor.DiscardPolicy());
+
+  /*
+   * Queues the translation of a comment with author 'name' and content 'comment' into
+   * each of the most requested languages. Returns immediately.
+   */
+  public static void queueTranslation(String name, String comment) {
+    executor.execute(
+        () -> {
+          List<String> texts = Arrays.asList(name, comment);
+          for (String langCode : getPopularLangs()) {
+            TranslationCache.translateAll(texts, langCode);
+          }
+        });
+  }
+
+  // Returns the codes of the most requested languages other than English
+  private static List<String> getPopularLangs() {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Entity> query =
+        Query.newEntityQueryBuilder()
+            .setKind("CommentLang")
+            .setOrderBy(OrderBy.desc("comments"))
+            .setLimit(numPopularLangs + 1)
+            .build();
+    QueryResults<Entity> results = datastore.run(query);
+
+    ArrayList<String> langs = new ArrayList<>();
+    while (results.hasNext() && langs.size() < numPopularLangs) {
+      String langCode = results.next().getString("lang");
+      // A language not yet migrated to LangCounter's keys can appear twice
+      if (!langCode.equals("en") && !langs.contains(langCode)) {
+        langs.add(langCode);
+      }
+    }
+    return langs;
+  }
+}
@@ -17,9 +17,11 @@ package com.google.sps.servlets;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.datastore.Entity;
 import com.google.common.io.CharStreams;
 import com.google.gson.JsonObject;
 import java.io.IOException;
+import java.util.List;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -40,32 +42,58 @@ public class ReplyServlet extends HttpServlet {
     if (!userService.isUserLoggedIn()) {
       return;
     }
+    String idempotencyKey = IdempotencyStore.getKey(request);
+    if (!IdempotencyStore.begin(idempotencyKey, response)) {
+      return;
+    }
+    try {
+      User currUser = userService.getCurrentUser();
+      String parsedBody = CharStreams.toString(request.getReader());
+      JsonObject jsonReply = UtilityFunctions.stringToJsonObject(parsedBody);
 
-    User currUser = userService.getCurrentUser();
-    String parsedBody = CharStreams.toString(request.getReader());
-    JsonObject jsonReply = UtilityFunctions.stringToJsonObject(parsedBody);
-
-    String userComment = UtilityFunctions.getFieldFromJsonObject(jsonReply, "comment", "");
-    if (userComment.length() != 0) {
-      String userName = UtilityFunctions.getFieldFromJsonObject(jsonReply, "name", "Anonymous");
-      String userEmail = currUser != null ? currUser.getEmail() : "janedoe@gmail.com";
-      String currDate = String.valueOf(System.currentTimeMillis());
-      long userDate =
-          Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonReply, "timestamp", currDate));
-      long parentId =
-          Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonReply, "parentid", "0"));
-      long rootId =
-          Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonReply, "rootid", "0"));
-      UtilityFunctions.addToDatastore(
-          userName,
-          userEmail,
-          userDate,
-          userComment,
-          parentId,
-          rootId,
-          /* isReply = */ true,
-          /* upvotes = */ 0,
-          /* downvotes = */ 0);
+      String userComment = UtilityFunctions.getFieldFromJsonObject(jsonReply, "comment", "");
+      if (userComment.length() != 0) {
+        String userName = UtilityFunctions.getFieldFromJsonObject(jsonReply, "name", "Anonymous");
+        String userEmail = currUser != null ? currUser.getEmail() : "janedoe@gmail.com";
+        String currDate = String.valueOf(System.currentTimeMillis());
+        long userDate =
+            Long.parseLong(
+                UtilityFunctions.getFieldFromJsonObject(jsonReply, "timestamp", currDate));
+        long parentId =
+            Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonReply, "parentid", "0"));
+        long rootId =
+            Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonReply, "rootid", "0"));
+        List<Entity> newEntities =
+            UtilityFunctions.createCommentEntities(
+                userName,
+                userEmail,
+                userDate,
+                userComment,
+                parentId,
+                rootId,
+                /* isReply = */ true,
+                /* upvotes = */ 0,
+                /* downvotes = */ 0);
+        if (newEntities.isEmpty()) {
+          return;
+        }
+        if (CommentWriteQueue.isEnabled()) {
+          if (!CommentWriteQueue.submit(newEntities, response)) {
+            return;
+          }
+          IdempotencyStore.complete(
+              idempotencyKey,
+              HttpServletResponse.SC_ACCEPTED,
+              CommentWriteQueue.getAcceptedBody(newEntities));
+        } else {
+          UtilityFunctions.writeCommentEntities(newEntities);
+          ContentVersion.bump();
+          IdempotencyStore.complete(idempotencyKey, HttpServletResponse.SC_OK, "");
+        }
+        PretranslationQueue.queueTranslation(userName, userComment);
+      }
+    } finally {
+      IdempotencyStore.release(idempotencyKey);
     }
   }
 }
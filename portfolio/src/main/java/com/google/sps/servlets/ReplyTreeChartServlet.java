@@ -16,15 +16,13 @@ package com.google.sps.servlets;
 
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.ProjectionEntity;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
-import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
-import com.google.common.collect.Iterators;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
 import com.google.gson.Gson;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -36,37 +34,67 @@ public class ReplyTreeChartServlet extends HttpServlet {
   /*
    * Called when a client submits a POST request to the /replytree-chart URL
    * Prepares data about the length of the reply tree for each top-level comment
-   * and sends it to the client for rendering
+   * and sends it to the client for rendering, using a single query regardless of
+   * the number of threads
    */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    // Maps each root comment text to the length of that comment's reply tree
-    ArrayList<Integer> replyTreeSize = new ArrayList<>();
+    // A client holding the current version is answered before the chart is looked up
+    if (ContentVersion.isNotModified(request, response, "", ContentVersion.get())) {
+      return;
+    }
+    CachedChart chart = ChartCache.get(request, this::getReplyTreeSizes);
+    // A chart served while it is recomputed may predate the current version
+    ContentVersion.setETag(request, response, "", chart.version());
+
+    response.setContentType("application/json;");
+    response.getWriter().println(chart.json());
+  }
 
+  // Returns the length of the reply tree of each top-level comment as a JSON array
+  private String getReplyTreeSizes() {
+    /*
+     * One projection on rootid, ordered by it, reads every comment's key and root ID.
+     * The roots (rootid 0) come first in key order, followed by the replies grouped by
+     * root in the same order, so each group's size is added to the root it matches as
+     * the two sequences are walked together.
+     */
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    Query<Entity> query =
-        Query.newEntityQueryBuilder()
+    Query<ProjectionEntity> query =
+        Query.newProjectionEntityQueryBuilder()
             .setKind("Comment")
-            .setFilter(PropertyFilter.eq("rootid", 0))
+            .setProjection("rootid")
+            .setOrderBy(OrderBy.asc("rootid"))
             .build();
-    QueryResults<Entity> results = datastore.run(query);
+    QueryResults<ProjectionEntity> results = datastore.run(query);
 
-    while (results.hasNext()) {
-      Entity comment = results.next();
-      long rootId = comment.getKey().getId();
+    long[] rootIds = new long[16];
+    int numRoots = 0;
+    ProjectionEntity comment = results.hasNext() ? results.next() : null;
+    while (comment != null && comment.getLong("rootid") == 0) {
+      if (numRoots == rootIds.length) {
+        rootIds = Arrays.copyOf(rootIds, 2 * numRoots);
+      }
+      rootIds[numRoots++] = comment.getKey().getId();
+      comment = results.hasNext() ? results.next() : null;
+    }
 
-      Query<Entity> childQuery =
-          Query.newEntityQueryBuilder()
-              .setKind("Comment")
-              .setFilter(PropertyFilter.eq("rootid", rootId))
-              .build();
-      Iterator<Entity> childResults = datastore.run(childQuery);
-      String text = comment.getString("comment");
-      replyTreeSize.add(Iterators.size(childResults));
+    // The length of the reply tree of each top-level comment, in the same order
+    int[] replyTreeSize = new int[numRoots];
+    int rootIndex = 0;
+    while (comment != null) {
+      long rootId = comment.getLong("rootid");
+      while (rootIndex < numRoots && rootIds[rootIndex] < rootId) {
+        rootIndex++;
+      }
+      // Replies whose root no longer exists are not counted
+      if (rootIndex < numRoots && rootIds[rootIndex] == rootId) {
+        replyTreeSize[rootIndex]++;
+      }
+      comment = results.hasNext() ? results.next() : null;
     }
 
     Gson gson = new Gson();
-    response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(replyTreeSize));
+    return gson.toJson(replyTreeSize);
   }
 }
@@ -0,0 +1,74 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.time.DayOfWeek;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+
+// The lengths of time comments are counted over by CommentRollups. Weeks start on Monday.
+enum RollupBucket {
+  HOUR("yyyy-MM-dd HH:00"),
+  DAY("yyyy-MM-dd"),
+  WEEK("yyyy-MM-dd"),
+  MONTH("yyyy-MM");
+
+  private final DateTimeFormatter labelFormat;
+
+  RollupBucket(String labelPattern) {
+    labelFormat = DateTimeFormatter.ofPattern(labelPattern);
+  }
+
+  // Returns the start of the bucket containing time, in time's zone
+  ZonedDateTime getStart(ZonedDateTime time) {
+    switch (this) {
+      case HOUR:
+        return time.truncatedTo(ChronoUnit.HOURS);
+      case DAY:
+        return time.truncatedTo(ChronoUnit.DAYS);
+      case WEEK:
+        return time.truncatedTo(ChronoUnit.DAYS)
+            .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+      default:
+        return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+    }
+  }
+
+  // Returns the start of the bucket after the one starting at start
+  ZonedDateTime getNext(ZonedDateTime start) {
+    switch (this) {
+      case HOUR:
+        return start.plusHours(1);
+      case DAY:
+        return start.plusDays(1);
+      case WEEK:
+        return start.plusWeeks(1);
+      default:
+        return start.plusMonths(1);
+    }
+  }
+
+  // Returns the label of the bucket starting at start, as shown on the chart
+  String getLabel(ZonedDateTime start) {
+    return labelFormat.format(start);
+  }
+
+  // Returns whether every bucket of this length is made up of whole buckets of finer
+  boolean isMadeOf(RollupBucket finer) {
+    return finer == HOUR || finer == this || (finer == DAY && this != HOUR);
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.common.cache.CacheStats;
+import java.io.IOException;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet("/stats")
+public class StatsServlet extends HttpServlet {
+
+  /*
+   * Called when a GET request is submitted to /stats. Returns counters describing
+   * the in-process caches of this server instance to the website admin.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    // Make sure user is logged in and they are the website admin
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      return;
+    }
+
+    CacheStats threadStats = CommentThreadCache.getStats();
+    JsonObjectBuilder threadCache =
+        Json.createObjectBuilder()
+            .add("size", CommentThreadCache.size())
+            .add("hits", threadStats.hitCount())
+            .add("misses", threadStats.missCount())
+            .add("hitrate", threadStats.hitRate())
+            .add("evictions", threadStats.evictionCount());
+
+    JsonObjectBuilder voteBuffer = Json.createObjectBuilder();
+    for (Map.Entry<String, Long> stat : VoteBuffer.getStats().entrySet()) {
+      voteBuffer.add(stat.getKey(), stat.getValue());
+    }
+
+    JsonObjectBuilder writeQueue = Json.createObjectBuilder();
+    for (Map.Entry<String, Long> stat : CommentWriteQueue.getStats().entrySet()) {
+      writeQueue.add(stat.getKey(), stat.getValue());
+    }
+
+    JsonObjectBuilder rollups = Json.createObjectBuilder();
+    for (Map.Entry<String, Long> stat : CommentRollups.getStats().entrySet()) {
+      rollups.add(stat.getKey(), stat.getValue());
+    }
+
+    JsonObjectBuilder builder =
+        Json.createObjectBuilder()
+            .add("threadcache", threadCache)
+            .add("votebuffer", voteBuffer)
+            .add("writequeue", writeQueue)
+            .add("rollups", rollups);
+    response.setContentType("application/json");
+    response.getWriter().println(builder.build().toString());
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.auto.value.AutoValue;
+
+// The status and body sent in reply to a write, kept so a retry can be sent the same
+@AutoValue
+abstract class StoredResponse {
+
+  static StoredResponse create(int status, String body) {
+    return new AutoValue_StoredResponse(status, body);
+  }
+
+  abstract int status();
+
+  // A JSON document, or empty if the response had no body
+  abstract String body();
+}
@@ -0,0 +1,151 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.StringValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Caches translations of comment text so that the same text is only sent to the
+ * translator once per target language. Translations are kept in a bounded
+ * in-memory cache backed by CommentTranslation entities in datastore, both keyed
+ * by the hash of the original text and the target language code.
+ */
+public class TranslationCache {
+
+  private static final int maxCachedTranslations = 10000;
+
+  // The largest number of entities datastore accepts in a single write
+  private static final int maxEntitiesPerWrite = 500;
+
+  // The largest number of keys datastore accepts in a single lookup
+  private static final int maxKeysPerLookup = 1000;
+
+  private static final Cache<String, String> translations =
+      CacheBuilder.newBuilder().maximumSize(maxCachedTranslations).build();
+
+  private static volatile CommentTranslator translator =
+      System.getProperty("translator", "cloud").equals("fake")
+          ? new FakeCommentTranslator()
+          : new CloudCommentTranslator();
+
+  // Replaces the translator used for texts that have no cached translation
+  public static void setTranslator(CommentTranslator newTranslator) {
+    translator = newTranslator;
+  }
+
+  /*
+   * Returns a map from each of texts to its translation in language langCode. Texts are
+   * looked up in the in-memory cache, then in datastore with batched gets, and
+   * whatever remains is sent to the translator in a single call.
+   */
+  public static Map<String, String> translateAll(Collection<String> texts, String langCode) {
+    Map<String, String> translated = new HashMap<>();
+    // Maps the cache key of each text that is not cached in memory to the text
+    Map<String, String> missingTexts = new LinkedHashMap<>();
+    for (String text : new LinkedHashSet<>(texts)) {
+      String cacheKey = getCacheKey(hashText(text), langCode);
+      String cached = translations.getIfPresent(cacheKey);
+      if (cached != null) {
+        translated.put(text, cached);
+      } else {
+        missingTexts.put(cacheKey, text);
+      }
+    }
+    if (missingTexts.isEmpty()) {
+      return translated;
+    }
+
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("CommentTranslation");
+    ArrayList<Key> keys = new ArrayList<>();
+    for (String cacheKey : missingTexts.keySet()) {
+      keys.add(keyFactory.newKey(cacheKey));
+    }
+    for (List<Key> batch : Lists.partition(keys, maxKeysPerLookup)) {
+      Iterator<Entity> stored = datastore.get(batch);
+      while (stored.hasNext()) {
+        Entity storedTranslation = stored.next();
+        String cacheKey = storedTranslation.getKey().getName();
+        String translatedText = storedTranslation.getString("translation");
+        translations.put(cacheKey, translatedText);
+        translated.put(missingTexts.remove(cacheKey), translatedText);
+      }
+    }
+    if (missingTexts.isEmpty()) {
+      return translated;
+    }
+
+    ArrayList<String> untranslatedTexts = new ArrayList<>(missingTexts.values());
+    List<String> translatedTexts = translator.translate(untranslatedTexts, langCode);
+    ArrayList<Entity> newTranslations = new ArrayList<>();
+    for (int i = 0; i < untranslatedTexts.size(); i++) {
+      String text = untranslatedTexts.get(i);
+      String translatedText = translatedTexts.get(i);
+      String hash = hashText(text);
+      translations.put(getCacheKey(hash, langCode), translatedText);
+      translated.put(text, translatedText);
+      newTranslations.add(createTranslationEntity(hash, langCode, translatedText));
+    }
+    for (List<Entity> batch : Lists.partition(newTranslations, maxEntitiesPerWrite)) {
+      datastore.put(batch.toArray(new Entity[0]));
+    }
+    return translated;
+  }
+
+  // Creates an entity recording that the text with hash 'hash' translates to translatedText
+  private static Entity createTranslationEntity(
+      String hash, String langCode, String translatedText) {
+    return Entity.newBuilder(getTranslationKey(hash, langCode))
+        .set("hash", hash)
+        .set("lang", langCode)
+        .set(
+            "translation",
+            StringValue.newBuilder(translatedText).setExcludeFromIndexes(true).build())
+        .build();
+  }
+
+  // Returns the key of the CommentTranslation entity for text with hash 'hash' in langCode
+  private static Key getTranslationKey(String hash, String langCode) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("CommentTranslation");
+    return keyFactory.newKey(getCacheKey(hash, langCode));
+  }
+
+  private static String getCacheKey(String hash, String langCode) {
+    return hash + "-" + langCode;
+  }
+
+  private static String hashText(String text) {
+    return Hashing.sha256().hashString(text, StandardCharsets.UTF_8).toString();
+  }
+}
@@ -19,21 +19,34 @@ import com.google.appengine.api.users.UserServiceFactory;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.FullEntity;
-import com.google.cloud.datastore.IncompleteKey;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
-import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
-import com.google.common.collect.Iterators;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.common.collect.Lists;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.servlet.http.HttpServletRequest;
 
 public class UtilityFunctions {
 
+  // The largest number of entities datastore accepts in a single write
+  private static final int maxEntitiesPerWrite = 500;
+
+  // The largest number of keys datastore accepts in a single lookup
+  private static final int maxKeysPerLookup = 1000;
+
   /*
    * Extracts the value of fieldName attribute from jsonObject if present
    * and returns defaultValue if it is not or the value is empty
@@ -47,8 +60,12 @@ public class UtilityFunctions {
     return defaultValue;
   }
 
-  // Adds a comment with the given metadata to the database
-  public static void addToDatastore(
+  /*
+   * Creates the entities that record a comment with the given metadata: the comment
+   * itself, its timestamp and, for a root in thread document mode, its thread document.
+   * The comment comes first. Returns an empty list if the metadata is not valid.
+   */
+  public static List<Entity> createCommentEntities(
       String name,
       String email,
       long dateTime,
@@ -58,14 +75,12 @@ public class UtilityFunctions {
       boolean isReply,
       long upvotes,
       long downvotes) {
+    ArrayList<Entity> newEntities = new ArrayList<>();
     if ((isReply && (parentId == 0)) || (isReply && (rootId == 0))) {
-      return;
+      return newEntities;
     }
-    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    KeyFactory keyFactory = datastore.newKeyFactory().setKind("Comment");
-    IncompleteKey key = keyFactory.setKind("Comment").newKey();
-    FullEntity<IncompleteKey> thisComment =
-        FullEntity.newBuilder(key)
+    Entity thisComment =
+        Entity.newBuilder(KeyAllocator.newKey("Comment"))
             .set("name", name)
             .set("email", email)
             .set("time", dateTime)
@@ -76,69 +91,191 @@ public class UtilityFunctions {
             .set("score", upvotes - downvotes)
             .set("userid", getCurrentUserId())
             .build();
-    Entity inserted = datastore.add(thisComment);
 
-    long commentId = inserted.getKey().getId();
-    addTimestampToDatastore(commentId, rootId, dateTime);
+    long commentId = thisComment.getKey().getId();
+    newEntities.add(thisComment);
+    newEntities.add(createTimestampEntity(commentId, rootId, dateTime));
+    if (CommentThreadDocuments.isEnabled() && !isReply) {
+      newEntities.add(CommentThreadDocuments.createDocument(Arrays.asList(thisComment)));
+    }
+    return newEntities;
+  }
+
+  /*
+   * Writes entities created by createCommentEntities for any number of comments to the
+   * database with a single call, then adds the replies among them to their threads
+   */
+  public static void writeCommentEntities(List<Entity> newEntities) {
+    putCommentEntities(newEntities);
+    recordWrittenComments(newEntities);
+  }
+
+  /*
+   * Writes entities created by createCommentEntities to the database with a single call.
+   * Their keys are allocated in advance, so writing the same entities again is safe.
+   */
+  public static void putCommentEntities(List<Entity> newEntities) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    datastore.put(newEntities.toArray(new Entity[0]));
+  }
+
+  /*
+   * Adds the replies among newEntities, which have just been written, to their threads
+   * and counts their timestamps in the rollups. Must run once per write, since neither
+   * the rollup counts nor a re-added reply that was since edited are safe to repeat.
+   */
+  public static void recordWrittenComments(List<Entity> newEntities) {
+    ArrayList<Entity> timestamps = new ArrayList<>();
+    for (Entity entity : newEntities) {
+      boolean isReply =
+          entity.getKey().getKind().equals("Comment") && entity.getLong("rootid") != 0;
+      if (isReply) {
+        CommentThreadCache.invalidate(entity.getLong("rootid"));
+        if (CommentThreadDocuments.isEnabled()) {
+          CommentThreadDocuments.addReply(entity);
+        }
+      }
+      if (entity.getKey().getKind().equals("DateEntry")) {
+        timestamps.add(entity);
+      }
+    }
+    CommentRollups.addTimestamps(timestamps, 1);
   }
 
   /*
-   * Adds an entry to datastore to represent that comment 'commentId' with root Id 'rootId'
+   * Creates an entry to represent that comment 'commentId' with root Id 'rootId'
    * was submitted at time 'time'
    */
-  public static void addTimestampToDatastore(long commentId, long rootId, long time) {
+  public static Entity createTimestampEntity(long commentId, long rootId, long time) {
+    return Entity.newBuilder(getTimestampKey(commentId))
+        .set("commentid", commentId)
+        .set("rootid", rootId)
+        .set("time", time)
+        .build();
+  }
+
+  // Returns the key of the DateEntry recording the timestamp of comment commentId
+  public static Key getTimestampKey(long commentId) {
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    KeyFactory dateKeyFactory = datastore.newKeyFactory().setKind("DateEntry");
-    IncompleteKey dateKey = dateKeyFactory.setKind("DateEntry").newKey();
-    FullEntity<IncompleteKey> thisCommentDate =
-        FullEntity.newBuilder(dateKey)
-            .set("commentid", commentId)
-            .set("rootid", rootId)
-            .set("time", time)
-            .build();
-    datastore.add(thisCommentDate);
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("DateEntry");
+    return keyFactory.newKey(commentId);
   }
 
-  // updates the stored timestamp of comment 'commentId' to be newTime
+  /*
+   * Updates the stored timestamp of comment 'commentId' to be newTime. The entry is
+   * looked up by its key; entries written before DateEntry was keyed by comment id
+   * are found by query instead and rekeyed on the way.
+   */
   public static void editTimestampInDatastore(long commentId, long newTime) {
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Entity timestamp = datastore.get(getTimestampKey(commentId));
+    if (timestamp != null) {
+      datastore.put(Entity.newBuilder(timestamp).set("time", newTime).build());
+      CommentRollups.moveComment(timestamp.getLong("rootid"), timestamp.getLong("time"), newTime);
+      return;
+    }
+
     Query<Entity> query =
         Query.newEntityQueryBuilder()
             .setKind("DateEntry")
             .setFilter(PropertyFilter.eq("commentid", commentId))
             .build();
     QueryResults<Entity> results = datastore.run(query);
-
     // This comment's timestamp has never been registered (impossible)
     if (!results.hasNext()) {
       return;
-    } else {
+    }
+    Entity legacyTimestamp = results.next();
+    datastore.put(
+        createTimestampEntity(commentId, legacyTimestamp.getLong("rootid"), newTime));
+    datastore.delete(legacyTimestamp.getKey());
+    CommentRollups.moveComment(
+        legacyTimestamp.getLong("rootid"), legacyTimestamp.getLong("time"), newTime);
+  }
+
+  /*
+   * Rekeys every DateEntry that is not yet keyed by its comment id, moving
+   * maxEntitiesPerWrite entries per batched put and delete. Returns the number of
+   * entries moved. Safe to run more than once.
+   */
+  public static long rekeyTimestampsInDatastore() {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind("DateEntry").build();
+    QueryResults<Entity> results = datastore.run(query);
+
+    long numRekeyed = 0;
+    ArrayList<Entity> rekeyed = new ArrayList<>();
+    ArrayList<Key> legacyKeys = new ArrayList<>();
+    while (results.hasNext()) {
       Entity timestamp = results.next();
-      // There is more than one timestamp for this comment (impossible)
-      if (results.hasNext()) {
-        return;
+      Key timestampKey = getTimestampKey(timestamp.getLong("commentid"));
+      if (timestamp.getKey().equals(timestampKey)) {
+        continue;
       }
-      Entity updatedTimestamp = Entity.newBuilder(timestamp).set("time", newTime).build();
-      datastore.update(updatedTimestamp);
+      rekeyed.add(Entity.newBuilder(timestampKey, timestamp).build());
+      legacyKeys.add(timestamp.getKey());
+      if (rekeyed.size() == maxEntitiesPerWrite) {
+        numRekeyed += moveTimestamps(datastore, rekeyed, legacyKeys);
+      }
+    }
+    if (!rekeyed.isEmpty()) {
+      numRekeyed += moveTimestamps(datastore, rekeyed, legacyKeys);
     }
+    return numRekeyed;
+  }
+
+  // Writes the rekeyed entries before deleting the old ones, then empties both lists
+  private static int moveTimestamps(
+      Datastore datastore, List<Entity> rekeyed, List<Key> legacyKeys) {
+    int numMoved = rekeyed.size();
+    datastore.put(rekeyed.toArray(new Entity[0]));
+    datastore.delete(legacyKeys.toArray(new Key[0]));
+    rekeyed.clear();
+    legacyKeys.clear();
+    return numMoved;
+  }
+
+  // Returns the key of the vote made by user userId on comment commentId
+  public static Key getVoteKey(String userId, long commentId) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("Vote");
+    return keyFactory.newKey(userId + "-" + commentId);
   }
 
   /*
-   * Adds a vote made by user userId on comment commentId which is an upvote if isUpvote
+   * Adds a vote made by user userId on comment which is an upvote if isUpvote
    * is true and a downvote otherwise to the database to prevent them from voting multiple
    * times on the same comment
    */
-  public static void addVoteToDatastore(String userId, long commentId, boolean isUpvote) {
+  public static void addVoteToDatastore(String userId, Entity comment, boolean isUpvote) {
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    KeyFactory keyFactory = datastore.newKeyFactory().setKind("Vote");
-    IncompleteKey key = keyFactory.setKind("Vote").newKey();
-    FullEntity<IncompleteKey> thisVote =
-        FullEntity.newBuilder(key)
-            .set("userid", userId)
-            .set("commentid", commentId)
-            .set("isupvote", isUpvote)
-            .build();
-    datastore.add(thisVote);
+    datastore.put(createVoteEntity(userId, comment, isUpvote));
+  }
+
+  /*
+   * Creates the entity recording a vote by user userId on comment. It holds the ID of
+   * the thread's root so that all votes in a thread can be found with one query.
+   */
+  public static Entity createVoteEntity(String userId, Entity comment, boolean isUpvote) {
+    long commentId = comment.getKey().getId();
+    return Entity.newBuilder(getVoteKey(userId, commentId))
+        .set("userid", userId)
+        .set("commentid", commentId)
+        .set("rootid", getRootId(comment))
+        .set("isupvote", isUpvote)
+        .build();
+  }
+
+  // Returns the ID of the root of the thread comment belongs to, which may be comment itself
+  public static long getRootId(Entity comment) {
+    long rootId = comment.getLong("rootid");
+    return (rootId == 0) ? comment.getKey().getId() : rootId;
+  }
+
+  // Returns the ID of the comment voted on by the vote with key voteKey
+  public static long getVotedCommentId(Key voteKey) {
+    String name = voteKey.getName();
+    return Long.parseLong(name.substring(name.lastIndexOf('-') + 1));
   }
 
   /*
@@ -146,6 +283,144 @@ public class UtilityFunctions {
    * they have downvoted it and 0 if they have not voted for it
    */
   public static int getVoteInDatastore(String userId, long commentId) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Entity vote = datastore.get(getVoteKey(userId, commentId));
+    if (vote == null) {
+      vote = rekeyLegacyVote(userId, commentId);
+    }
+    // The current user has not voted for this comment
+    if (vote == null) {
+      return 0;
+    }
+    int voteValue = (vote.getBoolean("isupvote")) ? 1 : -1;
+    return voteValue;
+  }
+
+  /*
+   * Returns whether user userId has upvoted, downvoted or not voted for each comment in
+   * commentIds, looking the votes up in batched reads of at most maxKeysPerLookup keys.
+   * Only sees votes stored under their user and comment key, so /migrate-votes must have
+   * been run for votes cast before that key was introduced to show up here.
+   */
+  public static Map<Long, UserComment.voteStatus> getVotesInDatastore(
+      String userId, Collection<Long> commentIds) {
+    Map<Long, UserComment.voteStatus> votes = new HashMap<>();
+    if (commentIds.isEmpty()) {
+      return votes;
+    }
+    ArrayList<Key> keys = new ArrayList<>();
+    for (long commentId : commentIds) {
+      votes.put(commentId, UserComment.voteStatus.NOTVOTED);
+      keys.add(getVoteKey(userId, commentId));
+    }
+
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    for (List<Key> batch : Lists.partition(keys, maxKeysPerLookup)) {
+      Iterator<Entity> results = datastore.get(batch);
+      while (results.hasNext()) {
+        Entity vote = results.next();
+        UserComment.voteStatus votingStatus =
+            vote.getBoolean("isupvote")
+                ? UserComment.voteStatus.UPVOTED
+                : UserComment.voteStatus.DOWNVOTED;
+        votes.put(vote.getLong("commentid"), votingStatus);
+      }
+    }
+    return votes;
+  }
+
+  // Removes user userId's vote on comment commentId from database
+  public static void removeVoteInDatastore(String userId, long commentId) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    datastore.delete(getStoredVoteKeys(userId, commentId).toArray(new Key[0]));
+  }
+
+  /*
+   * Returns the keys under which a vote by user userId on comment commentId may be
+   * stored, including any legacy rows with auto-allocated ids
+   */
+  private static List<Key> getStoredVoteKeys(String userId, long commentId) {
+    ArrayList<Key> keys = new ArrayList<>();
+    keys.add(getVoteKey(userId, commentId));
+    keys.addAll(getLegacyVoteKeys(userId, commentId));
+    return keys;
+  }
+
+  /*
+   * Rekeys every Vote written before votes were keyed by user and comment and records
+   * the thread root on every vote that lacks it, fixing maxEntitiesPerWrite votes per
+   * batched put and delete. A vote already stored under the new key is newer and is
+   * kept, and votes on comments that no longer exist are deleted. Returns the number of
+   * votes fixed. Safe to run more than once.
+   */
+  public static long rekeyVotesInDatastore() {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Query<Entity> query = Query.newEntityQueryBuilder().setKind("Vote").build();
+    QueryResults<Entity> results = datastore.run(query);
+
+    long numRekeyed = 0;
+    ArrayList<Entity> votesToFix = new ArrayList<>();
+    while (results.hasNext()) {
+      Entity vote = results.next();
+      if (!vote.getKey().hasId() && vote.contains("rootid")) {
+        continue;
+      }
+      votesToFix.add(vote);
+      if (votesToFix.size() == maxEntitiesPerWrite) {
+        numRekeyed += moveVotes(datastore, votesToFix);
+      }
+    }
+    if (!votesToFix.isEmpty()) {
+      numRekeyed += moveVotes(datastore, votesToFix);
+    }
+    return numRekeyed;
+  }
+
+  /*
+   * Rewrites votesToFix under their new keys with their thread root, unless a newer
+   * vote is already stored there or the comment is gone, and empties the list
+   */
+  private static int moveVotes(Datastore datastore, List<Entity> votesToFix) {
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("Comment");
+    ArrayList<Key> newKeys = new ArrayList<>();
+    ArrayList<Key> commentKeys = new ArrayList<>();
+    for (Entity vote : votesToFix) {
+      newKeys.add(getVoteKey(vote.getString("userid"), vote.getLong("commentid")));
+      commentKeys.add(keyFactory.newKey(vote.getLong("commentid")));
+    }
+    Set<Key> existingKeys = new HashSet<>();
+    datastore.get(newKeys).forEachRemaining(vote -> existingKeys.add(vote.getKey()));
+    Map<Long, Long> rootIds = new HashMap<>();
+    datastore
+        .get(commentKeys)
+        .forEachRemaining(comment -> rootIds.put(comment.getKey().getId(), getRootId(comment)));
+
+    ArrayList<Entity> rekeyed = new ArrayList<>();
+    ArrayList<Key> staleKeys = new ArrayList<>();
+    for (int i = 0; i < votesToFix.size(); i++) {
+      Entity vote = votesToFix.get(i);
+      Long rootId = rootIds.get(vote.getLong("commentid"));
+      boolean isLegacy = vote.getKey().hasId();
+      if (rootId != null && !(isLegacy && existingKeys.contains(newKeys.get(i)))) {
+        rekeyed.add(Entity.newBuilder(newKeys.get(i), vote).set("rootid", rootId).build());
+      }
+      if (isLegacy || rootId == null) {
+        staleKeys.add(vote.getKey());
+      }
+    }
+    datastore.put(rekeyed.toArray(new Entity[0]));
+    datastore.delete(staleKeys.toArray(new Key[0]));
+    int numMoved = votesToFix.size();
+    votesToFix.clear();
+    return numMoved;
+  }
+
+  /*
+   * Looks for a vote by userId on commentId stored before votes were keyed by user and
+   * comment. If there is one, moves it to its new key and returns it; otherwise returns
+   * null.
+   */
+  private static Entity rekeyLegacyVote(String userId, long commentId) {
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
     Query<Entity> query =
         Query.newEntityQueryBuilder()
@@ -155,22 +430,18 @@ public class UtilityFunctions {
                     PropertyFilter.eq("userid", userId), PropertyFilter.eq("commentid", commentId)))
             .build();
     QueryResults<Entity> results = datastore.run(query);
-    // The current user has not voted for this comment
     if (!results.hasNext()) {
-      return 0;
-    } else {
-      Entity vote = results.next();
-      // If there is more than one entry for a user-vote pair (impossible)
-      if (results.hasNext()) {
-        return 0;
-      }
-      int voteValue = (vote.getBoolean("isupvote")) ? 1 : -1;
-      return voteValue;
+      return null;
     }
+    Entity legacyVote = results.next();
+    Entity vote = Entity.newBuilder(getVoteKey(userId, commentId), legacyVote).build();
+    datastore.put(vote);
+    datastore.delete(legacyVote.getKey());
+    return vote;
   }
 
-  // Removes user userId's vote on comment commentId from database
-  public static void removeVoteInDatastore(String userId, long commentId) {
+  // Returns the keys of userId's votes on commentId stored under auto-allocated ids
+  private static List<Key> getLegacyVoteKeys(String userId, long commentId) {
     Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
     Query<Key> query =
         Query.newKeyQueryBuilder()
@@ -179,8 +450,13 @@ public class UtilityFunctions {
                 CompositeFilter.and(
                     PropertyFilter.eq("userid", userId), PropertyFilter.eq("commentid", commentId)))
             .build();
-    Key[] keys = Iterators.toArray(datastore.run(query), Key.class);
-    datastore.delete(keys);
+    ArrayList<Key> legacyKeys = new ArrayList<>();
+    datastore.run(query).forEachRemaining(key -> {
+      if (key.hasId()) {
+        legacyKeys.add(key);
+      }
+    });
+    return legacyKeys;
   }
 
   /*
@@ -216,36 +492,4 @@ public class UtilityFunctions {
     String userId = userService.getCurrentUser().getUserId();
     return userId;
   }
-
-  /*
-   * If language 'langCode' has never been requested, register that it has now been requested once.
-   * Otherwise, increase its request count by 1 in the database.
-   */
-  public static void updateLangInDatastoreIfPresent(String langCode) {
-    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    Query<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("CommentLang")
-            .setFilter(PropertyFilter.eq("lang", langCode))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-
-    if (results.hasNext()) {
-      Entity lang = results.next();
-      // There are multiple entries for this language (impossible)
-      if (results.hasNext()) {
-        return;
-      }
-      long numCommentsInLang = lang.getLong("comments");
-      Entity updatedLang = Entity.newBuilder(lang).set("comments", numCommentsInLang + 1).build();
-      datastore.update(updatedLang);
-    } else {
-      // This language has never been requested so add it to datastore with one request
-      KeyFactory keyFactory = datastore.newKeyFactory().setKind("CommentLang");
-      IncompleteKey key = keyFactory.setKind("CommentLang").newKey();
-      FullEntity<IncompleteKey> thisLang =
-          FullEntity.newBuilder(key).set("lang", langCode).set("comments", 1).build();
-      datastore.add(thisLang);
-    }
-  }
 }
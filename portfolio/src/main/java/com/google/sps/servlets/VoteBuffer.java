@@ -0,0 +1,252 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Entity;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Accumulates vote count changes in memory and writes them to the sharded counters of
+ * VoteCounter in batches, so that a burst of votes on the same comments becomes a few
+ * merged writes. Used instead of writing each vote's change directly while the
+ * 'votecounting' system property is set to 'buffered'.
+ *
+ * Buffered changes are written by whichever request finds them due, either because
+ * flushInterval has passed since the oldest one was recorded or because maxPendingDeltas
+ * have piled up. VoteServlet and DataServlet check after every vote and before every
+ * read, so this instance never serves counts that are more than flushInterval old.
+ * Changes that fail to be written are kept for the next flush. Whatever is still
+ * pending is written by /flush-counters and when the instance shuts down.
+ */
+public class VoteBuffer {
+
+  private static final long flushIntervalMs = 250;
+
+  private static final int maxPendingDeltas = 100;
+
+  // The most comments whose shards are updated in one transaction
+  private static final int maxCommentsPerTransaction = 25;
+
+  // The changes to upvotes and score of a comment that have not been written yet
+  private static class PendingDelta {
+    final LongAdder upvotes = new LongAdder();
+    final LongAdder score = new LongAdder();
+  }
+
+  /*
+   * Recording a delta holds the read lock, so many votes can be recorded at once, while
+   * taking the pending deltas for a flush holds the write lock
+   */
+  private static final ReadWriteLock pendingLock = new ReentrantReadWriteLock();
+  private static final ReentrantLock flushLock = new ReentrantLock();
+
+  private static ConcurrentHashMap<Long, PendingDelta> pending = new ConcurrentHashMap<>();
+  private static final AtomicInteger numPending = new AtomicInteger();
+  // When the oldest pending delta was recorded, or 0 if there are none
+  private static final AtomicLong oldestPendingTime = new AtomicLong();
+
+  private static final AtomicLong numFlushes = new AtomicLong();
+  private static final AtomicLong lastFlushLagMs = new AtomicLong();
+  private static final AtomicLong lastBatchDeltas = new AtomicLong();
+  private static final AtomicLong lastBatchComments = new AtomicLong();
+
+  private static final Logger logger = Logger.getLogger(VoteBuffer.class.getName());
+
+  static {
+    // Memcache can not be reached while shutting down, so the version bump is deferred
+    Runtime.getRuntime()
+        .addShutdownHook(new Thread(() -> flushNow(ContentVersion::requestBump)));
+  }
+
+  // Returns whether vote count changes are buffered
+  public static boolean isEnabled() {
+    return System.getProperty("votecounting", "immediate").equals("buffered");
+  }
+
+  /*
+   * Records that the upvotes of comment change by upvoteDelta and its score by
+   * scoreDelta. The change is written by a later flush.
+   */
+  public static void record(Entity comment, long upvoteDelta, long scoreDelta) {
+    VoteCounter.startShardingIfNeeded(comment);
+    pendingLock.readLock().lock();
+    try {
+      PendingDelta delta =
+          pending.computeIfAbsent(comment.getKey().getId(), commentId -> new PendingDelta());
+      delta.upvotes.add(upvoteDelta);
+      delta.score.add(scoreDelta);
+      oldestPendingTime.compareAndSet(0, System.currentTimeMillis());
+      numPending.incrementAndGet();
+    } finally {
+      pendingLock.readLock().unlock();
+    }
+  }
+
+  /*
+   * Writes the pending changes if they are due and no other request is already writing
+   * them. Returns whether anything was written.
+   */
+  public static boolean flushIfDue() {
+    long oldest = oldestPendingTime.get();
+    boolean isDue =
+        numPending.get() >= maxPendingDeltas
+            || (oldest != 0 && System.currentTimeMillis() - oldest >= flushIntervalMs);
+    if (!isDue || !flushLock.tryLock()) {
+      return false;
+    }
+    try {
+      return flush(ContentVersion::bump);
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /*
+   * Writes every pending change now, waiting for a flush already in progress to finish
+   * first. Returns whether anything was written.
+   */
+  public static boolean flushNow() {
+    return flushNow(ContentVersion::bump);
+  }
+
+  // Writes every pending change now and records the change with bumpVersion
+  private static boolean flushNow(Runnable bumpVersion) {
+    flushLock.lock();
+    try {
+      return flush(bumpVersion);
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  // Returns the number of flushes and the size and lag of the most recent one
+  public static Map<String, Long> getStats() {
+    Map<String, Long> stats = new HashMap<>();
+    stats.put("flushes", numFlushes.get());
+    stats.put("pendingdeltas", (long) numPending.get());
+    stats.put("lastflushlagms", lastFlushLagMs.get());
+    stats.put("lastbatchdeltas", lastBatchDeltas.get());
+    stats.put("lastbatchcomments", lastBatchComments.get());
+    return stats;
+  }
+
+  /*
+   * Writes every pending change and records that the counts changed with bumpVersion.
+   * A batch that can not be written is logged and put back, together with all later
+   * batches, to be retried by the next flush. Must be called while holding flushLock.
+   */
+  private static boolean flush(Runnable bumpVersion) {
+    ConcurrentHashMap<Long, PendingDelta> toFlush;
+    long oldest;
+    int numDeltas;
+    pendingLock.writeLock().lock();
+    try {
+      toFlush = pending;
+      pending = new ConcurrentHashMap<>();
+      oldest = oldestPendingTime.getAndSet(0);
+      numDeltas = numPending.getAndSet(0);
+    } finally {
+      pendingLock.writeLock().unlock();
+    }
+    if (toFlush.isEmpty()) {
+      return false;
+    }
+
+    Map<Long, VoteTotals> deltas = new HashMap<>();
+    for (Map.Entry<Long, PendingDelta> entry : toFlush.entrySet()) {
+      PendingDelta delta = entry.getValue();
+      deltas.put(entry.getKey(), VoteTotals.create(delta.upvotes.sum(), delta.score.sum()));
+    }
+
+    List<List<Long>> batches =
+        Lists.partition(new ArrayList<>(deltas.keySet()), maxCommentsPerTransaction);
+    ArrayList<Long> written = new ArrayList<>();
+    for (int i = 0; i < batches.size(); i++) {
+      Map<Long, VoteTotals> batchDeltas = new HashMap<>();
+      for (long commentId : batches.get(i)) {
+        batchDeltas.put(commentId, deltas.get(commentId));
+      }
+      try {
+        VoteCounter.addToShards(batchDeltas);
+        written.addAll(batches.get(i));
+      } catch (RuntimeException e) {
+        int numUnwritten = 0;
+        for (List<Long> unwritten : batches.subList(i, batches.size())) {
+          for (long commentId : unwritten) {
+            requeue(commentId, deltas.get(commentId));
+            numUnwritten++;
+          }
+        }
+        logger.log(
+            Level.WARNING,
+            "Could not write vote counts of " + numUnwritten + " comments, requeued them",
+            e);
+        break;
+      }
+    }
+    if (written.isEmpty()) {
+      return false;
+    }
+
+    numFlushes.incrementAndGet();
+    lastFlushLagMs.set(System.currentTimeMillis() - oldest);
+    lastBatchDeltas.set(numDeltas);
+    lastBatchComments.set(written.size());
+
+    for (long commentId : written) {
+      Entity updatedComment = VoteCounter.refreshCachedTotals(commentId);
+      if (updatedComment != null) {
+        CommentThreadCache.invalidateThreadOf(updatedComment);
+        if (CommentThreadDocuments.isEnabled()) {
+          try {
+            CommentThreadDocuments.updateComment(updatedComment);
+          } catch (RuntimeException e) {
+            // The counts are written; the document catches up on the next refresh
+            logger.log(Level.WARNING, "Could not update thread document of " + commentId, e);
+          }
+        }
+      }
+    }
+    bumpVersion.run();
+    return true;
+  }
+
+  // Adds totals, a change to comment commentId that could not be written, back to pending
+  private static void requeue(long commentId, VoteTotals totals) {
+    pendingLock.readLock().lock();
+    try {
+      PendingDelta delta = pending.computeIfAbsent(commentId, id -> new PendingDelta());
+      delta.upvotes.add(totals.upvotes());
+      delta.score.add(totals.score());
+      oldestPendingTime.compareAndSet(0, System.currentTimeMillis());
+      numPending.incrementAndGet();
+    } finally {
+      pendingLock.readLock().unlock();
+    }
+  }
+}
@@ -0,0 +1,280 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/*
+ * Counts the upvotes and score of comments across several VoteShard entities per
+ * comment, so that many concurrent votes on one comment do not contend on a single
+ * entity. Each vote transactionally updates one randomly chosen shard and the totals
+ * are the sums over all shards of a comment.
+ *
+ * A comment switches to sharded counting on its first vote, when its current counts
+ * are moved into its first shard and its 'sharded' property is set. Until then its
+ * counts are read from the Comment entity. The 'upvotes' and 'score' properties of a
+ * sharded comment hold a cached copy of the totals, refreshed at most once per
+ * second per comment by each server instance, which is used to sort comments by score.
+ */
+public class VoteCounter {
+
+  private static final int numShards = 10;
+
+  // The number of times an increment is attempted when its transaction conflicts
+  private static final int maxAttempts = 5;
+
+  // The largest number of keys datastore accepts in a single lookup
+  private static final int maxKeysPerLookup = 1000;
+
+  // Comments whose cached totals have been refreshed by this instance in the last second
+  private static final Cache<Long, Boolean> recentlyRefreshed =
+      CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.SECONDS).build();
+
+  /*
+   * Records a vote on comment and counts it, in one transaction. writeVote reads and
+   * writes the vote itself in that transaction and returns the change it makes to the
+   * upvotes and score of comment, or null if the vote is unchanged, in which case
+   * nothing is written. Returns the comment with its cached totals refreshed, or null
+   * if they were not refreshed.
+   */
+  public static Entity increment(Entity comment, Function<Transaction, VoteTotals> writeVote) {
+    startShardingIfNeeded(comment);
+    long commentId = comment.getKey().getId();
+    boolean changed =
+        addToShards(
+            transaction -> {
+              VoteTotals delta = writeVote.apply(transaction);
+              return (delta == null) ? null : Collections.singletonMap(commentId, delta);
+            });
+    return changed ? refreshCachedTotals(commentId) : null;
+  }
+
+  /*
+   * Adds each of deltas to one randomly chosen shard of the comment it is keyed by, in a
+   * single transaction. Every comment must already be sharded.
+   */
+  public static void addToShards(Map<Long, VoteTotals> deltas) {
+    addToShards(transaction -> deltas);
+  }
+
+  /*
+   * Adds each of the deltas returned by writeDeltas to one randomly chosen shard of the
+   * comment it is keyed by, in the transaction passed to writeDeltas, which may read and
+   * write other entities in it. Nothing is written if writeDeltas returns null. Returns
+   * whether the transaction committed. Every comment must already be sharded.
+   */
+  private static boolean addToShards(
+      Function<Transaction, Map<Long, VoteTotals>> writeDeltas) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Map<Long, VoteTotals> deltas = writeDeltas.apply(transaction);
+        if (deltas == null) {
+          return false;
+        }
+        ArrayList<Long> commentIds = new ArrayList<>(deltas.keySet());
+        Key[] shardKeys = new Key[commentIds.size()];
+        for (int i = 0; i < shardKeys.length; i++) {
+          shardKeys[i] =
+              getShardKey(commentIds.get(i), ThreadLocalRandom.current().nextInt(numShards));
+        }
+        List<Entity> shards = transaction.fetch(shardKeys);
+        for (int i = 0; i < shardKeys.length; i++) {
+          Entity shard = shards.get(i);
+          VoteTotals delta = deltas.get(commentIds.get(i));
+          long upvotes = (shard == null) ? 0 : shard.getLong("upvotes");
+          long score = (shard == null) ? 0 : shard.getLong("score");
+          transaction.put(
+              Entity.newBuilder(shardKeys[i])
+                  .set("commentid", commentIds.get(i))
+                  .set("upvotes", upvotes + delta.upvotes())
+                  .set("score", score + delta.score())
+                  .build());
+        }
+        transaction.commit();
+        return true;
+      } catch (DatastoreException e) {
+        // Another vote updated one of the same shards or votes first, so try again
+        if (attempt == maxAttempts) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /*
+   * Returns the upvotes and score of each of comments, keyed by comment ID. The shards
+   * of all sharded comments are read with batched lookups.
+   */
+  public static Map<Long, VoteTotals> getTotals(List<Entity> comments) {
+    Map<Long, VoteTotals> totals = new HashMap<>();
+    ArrayList<Key> shardKeys = new ArrayList<>();
+    for (Entity comment : comments) {
+      long commentId = comment.getKey().getId();
+      if (isSharded(comment)) {
+        totals.put(commentId, VoteTotals.create(0, 0));
+        for (int i = 0; i < numShards; i++) {
+          shardKeys.add(getShardKey(commentId, i));
+        }
+      } else {
+        totals.put(
+            commentId, VoteTotals.create(comment.getLong("upvotes"), comment.getLong("score")));
+      }
+    }
+
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    for (List<Key> batch : Lists.partition(shardKeys, maxKeysPerLookup)) {
+      Iterator<Entity> shards = datastore.get(batch);
+      while (shards.hasNext()) {
+        Entity shard = shards.next();
+        long commentId = shard.getLong("commentid");
+        VoteTotals sum = totals.get(commentId);
+        totals.put(
+            commentId,
+            VoteTotals.create(
+                sum.upvotes() + shard.getLong("upvotes"), sum.score() + shard.getLong("score")));
+      }
+    }
+    return totals;
+  }
+
+  // Returns whether the votes of comment are counted in shards
+  private static boolean isSharded(Entity comment) {
+    return comment.contains("sharded") && comment.getBoolean("sharded");
+  }
+
+  // Switches comment to sharded counting if it does not use it yet
+  public static void startShardingIfNeeded(Entity comment) {
+    if (!isSharded(comment)) {
+      startSharding(comment.getKey());
+    }
+  }
+
+  /*
+   * Moves the counts stored on the comment with key commentKey into its first shard
+   * and marks it as sharded, unless another vote has already done so
+   */
+  private static void startSharding(Key commentKey) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    Transaction transaction = datastore.newTransaction();
+    try {
+      Entity comment = transaction.get(commentKey);
+      if (comment == null || isSharded(comment)) {
+        return;
+      }
+      Key shardKey = getShardKey(commentKey.getId(), 0);
+      // The flag was lost by a write based on an older copy of the comment after sharding
+      if (transaction.get(shardKey) == null) {
+        transaction.put(
+            Entity.newBuilder(shardKey)
+                .set("commentid", commentKey.getId())
+                .set("upvotes", comment.getLong("upvotes"))
+                .set("score", comment.getLong("score"))
+                .build());
+      }
+      transaction.put(Entity.newBuilder(comment).set("sharded", true).build());
+      transaction.commit();
+    } catch (DatastoreException e) {
+      // A concurrent vote on the same comment is switching it to sharded counting
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /*
+   * Copies the current totals of the comment with ID commentId onto its 'upvotes' and
+   * 'score' properties unless this instance did so within the last second. Returns the
+   * updated comment, or null if nothing was written. The shards are read outside the
+   * transaction, which only covers the comment, so refreshing never conflicts with
+   * votes; the copy may miss a vote committed meanwhile until the next refresh.
+   */
+  public static Entity refreshCachedTotals(long commentId) {
+    if (recentlyRefreshed.asMap().putIfAbsent(commentId, true) != null) {
+      return null;
+    }
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    long upvotes = 0;
+    long score = 0;
+    Iterator<Entity> shards = datastore.get(getShardKeys(commentId));
+    while (shards.hasNext()) {
+      Entity shard = shards.next();
+      upvotes += shard.getLong("upvotes");
+      score += shard.getLong("score");
+    }
+
+    Key commentKey = datastore.newKeyFactory().setKind("Comment").newKey(commentId);
+    Transaction transaction = datastore.newTransaction();
+    try {
+      Entity comment = transaction.get(commentKey);
+      if (comment == null) {
+        return null;
+      }
+      Entity updatedComment =
+          Entity.newBuilder(comment).set("upvotes", upvotes).set("score", score).build();
+      transaction.put(updatedComment);
+      transaction.commit();
+      return updatedComment;
+    } catch (DatastoreException e) {
+      // The comment was edited meanwhile; the next vote refreshes the totals instead
+      recentlyRefreshed.invalidate(commentKey.getId());
+      return null;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  // Returns the keys of all shards of the comment with ID commentId, whether they exist or not
+  public static List<Key> getShardKeys(long commentId) {
+    ArrayList<Key> shardKeys = new ArrayList<>();
+    for (int i = 0; i < numShards; i++) {
+      shardKeys.add(getShardKey(commentId, i));
+    }
+    return shardKeys;
+  }
+
+  // Returns the key of shard number shardIndex of the comment with ID commentId
+  private static Key getShardKey(long commentId, int shardIndex) {
+    Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind("VoteShard");
+    return keyFactory.newKey(commentId + "-" + shardIndex);
+  }
+}
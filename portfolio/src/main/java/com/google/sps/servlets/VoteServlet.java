@@ -18,8 +18,10 @@ import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Transaction;
 import com.google.common.io.CharStreams;
 import com.google.gson.JsonObject;
 import java.io.IOException;
@@ -43,22 +45,32 @@ public class VoteServlet extends HttpServlet {
     if (!userService.isUserLoggedIn()) {
       return;
     }
-    String parsedBody = CharStreams.toString(request.getReader());
-    JsonObject jsonVote = UtilityFunctions.stringToJsonObject(parsedBody);
-
-    long commentId = Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonVote, "id", "0"));
-    long amount = Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonVote, "amt", "0"));
-
-    // Prevent a POST request from changing vote count by more than 1
-    if (amount != 1 && amount != -1) {
+    String idempotencyKey = IdempotencyStore.getKey(request);
+    if (!IdempotencyStore.begin(idempotencyKey, response)) {
       return;
     }
+    try {
+      String parsedBody = CharStreams.toString(request.getReader());
+      JsonObject jsonVote = UtilityFunctions.stringToJsonObject(parsedBody);
+
+      long commentId = Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonVote, "id", "0"));
+      long amount = Long.parseLong(UtilityFunctions.getFieldFromJsonObject(jsonVote, "amt", "0"));
+
+      // Prevent a POST request from changing vote count by more than 1
+      if (amount != 1 && amount != -1) {
+        return;
+      }
 
-    if (commentId != 0 && amount != 0) {
-      boolean isUpvote =
-          Boolean.parseBoolean(
-              UtilityFunctions.getFieldFromJsonObject(jsonVote, "isupvote", "true"));
-      changeVoteInDatastore(commentId, isUpvote, amount);
+      if (commentId != 0 && amount != 0) {
+        boolean isUpvote =
+            Boolean.parseBoolean(
+                UtilityFunctions.getFieldFromJsonObject(jsonVote, "isupvote", "true"));
+        changeVoteInDatastore(commentId, isUpvote, amount);
+        ContentVersion.bump();
+        IdempotencyStore.complete(idempotencyKey, HttpServletResponse.SC_OK, "");
+      }
+    } finally {
+      IdempotencyStore.release(idempotencyKey);
     }
   }
 
@@ -77,13 +89,56 @@ public class VoteServlet extends HttpServlet {
     Entity comment = datastore.get(keyFactory.newKey(commentId));
 
     String userId = UtilityFunctions.getCurrentUserId();
+    // Moves a vote stored before votes were keyed by user and comment to that key
+    UtilityFunctions.getVoteInDatastore(userId, commentId);
+
+    if (VoteBuffer.isEnabled()) {
+      // The vote is stored now and its count written together with other votes by a later flush
+      VoteTotals delta;
+      Transaction transaction = datastore.newTransaction();
+      try {
+        delta = writeVote(transaction, userId, comment, isUpvote, amount);
+        if (delta == null) {
+          return;
+        }
+        transaction.commit();
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+      VoteBuffer.record(comment, delta.upvotes(), delta.score());
+      VoteBuffer.flushIfDue();
+      return;
+    }
+    // The vote is stored in the same transaction as the change to the counts
+    Entity updatedComment =
+        VoteCounter.increment(
+            comment, transaction -> writeVote(transaction, userId, comment, isUpvote, amount));
+    // The comment's cached vote totals were refreshed
+    if (updatedComment != null && CommentThreadDocuments.isEnabled()) {
+      CommentThreadDocuments.updateComment(updatedComment);
+    }
+    CommentThreadCache.invalidateThreadOf(comment);
+  }
+
+  /*
+   * Reads the vote of user userId on comment in transaction and adds or removes it as
+   * described for changeVoteInDatastore. Returns the resulting change to the upvotes and
+   * score of comment, or null if the vote is left as it is. Reading the vote in the
+   * transaction that writes it means two identical votes sent at once are counted once.
+   */
+  private static VoteTotals writeVote(
+      Transaction transaction, String userId, Entity comment, boolean isUpvote, long amount) {
+    Key voteKey = UtilityFunctions.getVoteKey(userId, comment.getKey().getId());
+    Entity vote = transaction.get(voteKey);
     /*
      * Possible Values:
      * 0 - current user has not voted for this comment
      * 1 - current user has upvoted this comment
      * -1 - current user has downvoted this comment
      */
-    int voteValue = UtilityFunctions.getVoteInDatastore(userId, commentId);
+    int voteValue = (vote == null) ? 0 : (vote.getBoolean("isupvote") ? 1 : -1);
 
     if (voteValue != 0 && amount == 1) {
       /*
@@ -91,7 +146,7 @@ public class VoteServlet extends HttpServlet {
        * or has downvoted the comment and is trying to upvote it. In
        * this case, no change should occur.
        */
-      return;
+      return null;
     } else if (voteValue != 0 && amount == -1) {
       /*
        * User has upvoted/downvoted the comment and is trying to
@@ -99,27 +154,17 @@ public class VoteServlet extends HttpServlet {
        */
       // User has upvoted but is trying to revert downvote or vice versa (impossible)
       if ((voteValue == 1 && !isUpvote) || (voteValue == -1 && isUpvote)) {
-        return;
+        return null;
       }
-      UtilityFunctions.removeVoteInDatastore(userId, commentId);
-    } else {
-      // User has no vote on this comment currently and is making a fresh vote
-      UtilityFunctions.addVoteToDatastore(userId, commentId, isUpvote);
     }
 
-    long upvotes = comment.getLong("upvotes");
-    long score = comment.getLong("score");
-    long downvotes = upvotes - score;
-    Entity updatedComment;
-    if (isUpvote) {
-      updatedComment =
-          Entity.newBuilder(comment)
-              .set("upvotes", upvotes + amount)
-              .set("score", score + amount)
-              .build();
+    if (voteValue != 0) {
+      transaction.delete(voteKey);
     } else {
-      updatedComment = Entity.newBuilder(comment).set("score", score - amount).build();
+      // User has no vote on this comment currently and is making a fresh vote
+      transaction.put(UtilityFunctions.createVoteEntity(userId, comment, isUpvote));
     }
-    datastore.update(updatedComment);
+
+    return VoteTotals.create(isUpvote ? amount : 0, isUpvote ? amount : -amount);
   }
 }
@@ -0,0 +1,30 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+abstract class VoteTotals {
+
+  static VoteTotals create(long upvotes, long score) {
+    return new AutoValue_VoteTotals(upvotes, score);
+  }
+
+  abstract long upvotes();
+
+  // The number of upvotes minus the number of downvotes
+  abstract long score();
+}
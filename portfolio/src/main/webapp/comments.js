@@ -59,7 +59,8 @@ function loadComments() {
   }
   let fetchString = `/data?maxcomments=${maxcomments}&metric=${sortMetric}&order=${sortOrder}`;
   fetchString = fetchString + `&filterby=${filterMetric}&filtertext=${filterText}&lang=${lang}`;
-  fetch(fetchString).then(response => response.json()).then(comments => {
+  fetch(fetchString).then(response => response.json()).then(page => {
+    const comments = page["comments"];
     const commentList = document.getElementById("toplevelcomments");
     while (commentList.lastChild) {
       commentList.removeChild(commentList.lastChild);
@@ -438,8 +439,10 @@ function submitForm(form) {
 }
 
 /**
- * Submits a post request to /delete-all to delete all comments,
- * then reloads the comments section
+ * Submits post requests to /delete-all to delete all comments, repeating
+ * them until the server reports that the purge is done, then reloads
+ * the comments section. Waits and tries again while another request is
+ * working on the purge, and stops with an error for any other failure.
  */
 function clearComments() {
   fetch("/delete-all", {
@@ -448,7 +451,18 @@ function clearComments() {
       'Content-Type': 'application/json',
     },
     body: ''
-  }).then(response => loadComments());
+  }).then(response => {
+    if (response.status === 409) {
+      window.setTimeout(clearComments, 1000);
+      return;
+    }
+    if (!response.ok) {
+      alert("Deleting all comments failed (" + response.status + "), please try again");
+      return;
+    }
+    return response.json()
+      .then(progress => progress.done ? loadComments() : clearComments());
+  });
 }
 
 /**